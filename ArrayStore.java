@@ -8,6 +8,15 @@
 // ArrayStore as = ArrayStore(blockStore);
 //   Make a new ArrayStore that uses blockStore for storage.
 //
+// ArrayStore as = ArrayStore(blockStore, executor, parallelism);
+//   Same, but a request bigger than a few runs of MinParallelRunBytes is
+//   split, on block boundaries, into as many as <parallelism> runs, which
+//   go to <executor> (the calling thread does the first one itself) so
+//   that the device sees them all at once.  The call still returns only
+//   once every run is done, and a failure is reported for the earliest
+//   run that failed.  <blockStore> must allow concurrent access to
+//   different blocks.
+//
 // as.write(buf, bufOffset, storageOffset, nbytes);
 //   Copy data from buf[bufOffset] thru buf[bufOffset+nbytes-1] into
 //   the ArrayStore at locations storageOffset thru storageOffset+nbytes-1
@@ -17,22 +26,400 @@
 //   thru storageOffset+nbytes-1 into 
 //   buf[bufOffset] thru buf[bufOffset+nbytes-1].
 //
+// as.write(src, storageOffset);
+// as.read(dst, storageOffset);
+//   Same, but moving the remaining bytes of a ByteBuffer (heap or direct),
+//   and advancing its position.  Stores that support it move the data
+//   straight between the buffer and the device, without an extra copy.
+//
+// as.blockSize();
+//   The block size of the underlying BlockStore.  Accesses that start and
+//   end on multiples of it are the cheapest.
+//
+// as.setReadAhead(maxBytes);
+//   Watch for reads that each start where the last one ended.  After one,
+//   the bytes that follow it are read into memory in the background (on the
+//   executor), ready for the next read.  The amount read ahead starts at a
+//   few blocks and doubles with each sequential read, up to <maxBytes>; any
+//   other read sets it back.  0 (the default) turns this off.  Needs the
+//   executor constructor.  Data read ahead is dropped if this ArrayStore
+//   writes over it, but writes through other handles aren't seen, so only
+//   turn this on where nothing else writes the same store.
+//
+// as.setWriteCoalescing(true);
+//   When a write starts where the last one ended, don't write the partial
+//   block at its end yet; hold on to it, so that the next sequential write
+//   can fill it in and it goes down as one whole-block write.  Held data
+//   goes down when the block is full, or before any read or other write
+//   that doesn't continue it, or on flush(); if writing it fails, that
+//   call throws the DataIntegrityException, and the bytes stay held, so
+//   that a later flush() can try again.  Until then, the held bytes are
+//   only visible through this ArrayStore, and a write that returned may
+//   not be on the device yet, so don't use this where a write has to be
+//   durable, or visible to others, as soon as it returns.
+//
+// as.flush();
+//   Write down any partial block held by write coalescing.  Call this
+//   before giving up the ArrayStore.
+//
 // The read and write methods throw DataIntegrityException if
 // there was a data integrity problem in the underlying DataStore.
 //
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
 public class ArrayStore {
+	public static final int MinParallelRunBytes = 64*1024;
+
 	private int        blockSize;
 	private BlockStore bs;
+	private Executor   executor;
+	private int        parallelism = 1;
+
+	// state for read-ahead and write coalescing, guarded by <sequential>
+	private final Object sequential = new Object();
+	private int        maxReadAhead = 0;
+	private int        readAheadSize;
+	private long       lastReadEnd = -1;
+	private ReadAhead  readAhead;
+	private boolean    coalesceWrites = false;
+	private long       lastWriteEnd = -1;
+	private byte[]     tail;            // the held partial block, or null
+	private int        tailBlock;
+	private int        tailLo, tailHi;  // the held bytes within the block
+
+	private static class ReadAhead {
+		long         start, end;       // storage offsets
+		Future<byte[]> data;
+	}
 
 	public ArrayStore(BlockStore bss) {
 		bs = bss;
 		blockSize = bs.blockSize();
 	}
 
+	public ArrayStore(BlockStore bss, Executor executor, int parallelism) {
+		this(bss);
+		if(parallelism < 1){
+			throw new IllegalArgumentException();
+		}
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public void setReadAhead(int maxBytes) {
+		if(maxBytes < 0 || (maxBytes > 0 && executor == null)){
+			throw new IllegalArgumentException();
+		}
+		synchronized(sequential){
+			maxReadAhead = maxBytes;
+			readAheadSize = Math.min(maxBytes, 4*blockSize);
+			dropReadAhead();
+		}
+	}
+
+	public void setWriteCoalescing(boolean on) {
+		// Turning it off doesn't write down a block that is already held;
+		// flush() does.
+		synchronized(sequential){
+			coalesceWrites = on;
+		}
+	}
+
+	public void flush() throws DataIntegrityException {
+		synchronized(sequential){
+			flushTail();
+		}
+	}
+
+	private interface Run {
+		// do bytes <offset> thru <offset+nbytes-1> of a request, which
+		// start at <storageOffset> in storage
+		void run(int offset, int storageOffset, int nbytes)
+			throws DataIntegrityException;
+	}
+
+	private void inRuns(int storageOffset, int nbytes, Run run) 
+		throws DataIntegrityException {
+
+		int numRuns = Math.min(parallelism, nbytes / MinParallelRunBytes);
+		if(numRuns <= 1){
+			run.run(0, storageOffset, nbytes);
+			return;
+		}
+
+		// run i covers [bounds[i], bounds[i+1]), with the inner bounds
+		// rounded down to a block boundary so no two runs share a block
+		long[] bounds = new long[numRuns+1];
+		bounds[0] = storageOffset;
+		bounds[numRuns] = (long)storageOffset + nbytes;
+		for(int i=1; i<numRuns; ++i){
+			long b = storageOffset + ((long)nbytes)*i/numRuns;
+			bounds[i] = Math.max(bounds[i-1], b - b%blockSize);
+		}
+
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		for(int i=1; i<numRuns; ++i){
+			int start = (int) bounds[i];
+			int len = (int)(bounds[i+1]-bounds[i]);
+			FutureTask<Void> task = new FutureTask<Void>(() -> {
+				run.run(start-storageOffset, start, len);
+				return null;
+			});
+			tasks.add(task);
+			executor.execute(task);
+		}
+
+		// every run must finish before we return, even after a failure,
+		// since they are all still using the caller's buffer
+		Throwable failure = null;
+		try {
+			run.run(0, storageOffset, (int)(bounds[1]-bounds[0]));
+		}catch(DataIntegrityException | RuntimeException x){
+			failure = x;
+		}
+		boolean interrupted = false;
+		for(FutureTask<Void> task : tasks){
+			while(true){
+				try {
+					task.get();
+					break;
+				}catch(InterruptedException x){
+					interrupted = true;
+				}catch(ExecutionException x){
+					if(failure == null){
+						failure = x.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		if(failure instanceof DataIntegrityException){
+			throw (DataIntegrityException) failure;
+		}else if(failure instanceof RuntimeException){
+			throw (RuntimeException) failure;
+		}else if(failure != null){
+			throw new RuntimeException(failure);
+		}
+	}
+
 	public void write(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
 		throws DataIntegrityException {
 
+		write(ByteBuffer.wrap(buf, bufOffset, nbytes), storageOffset);
+	}
+
+	public void read(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
+		throws DataIntegrityException {
+
+		read(ByteBuffer.wrap(buf, bufOffset, nbytes), storageOffset);
+	}
+
+	public void write(ByteBuffer src, int storageOffset) 
+		throws DataIntegrityException {
+
+		int nbytes = src.remaining();
+		int done = 0;
+		int held = 0;
+		synchronized(sequential){
+			dropReadAhead(storageOffset, nbytes);
+			boolean continues = (storageOffset == lastWriteEnd);
+			lastWriteEnd = (long)storageOffset + nbytes;
+			if(tail != null){
+				long tailEnd = (long)tailBlock*blockSize + tailHi;
+				if(storageOffset == tailEnd && tailHi < blockSize){
+					done = Math.min(nbytes, blockSize-tailHi);
+					slice(src, 0, done).get(tail, tailHi, done);
+					tailHi += done;
+					if(tailHi == blockSize){
+						flushTail();
+					}
+				}else{
+					flushTail();
+				}
+			}
+
+			long end = (long)storageOffset + nbytes;
+			long heldFrom = Math.max(storageOffset+done, end - end%blockSize);
+			if(coalesceWrites && continues && heldFrom < end){
+				held = (int)(end-heldFrom);
+				tail = new byte[blockSize];
+				tailBlock = (int)(heldFrom / blockSize);
+				tailLo = (int)(heldFrom % blockSize);
+				tailHi = tailLo + held;
+				slice(src, nbytes-held, held).get(tail, tailLo, held);
+			}
+		}
+		writeDirect(slice(src, done, nbytes-done-held), storageOffset+done);
+		src.position(src.limit());
+	}
+
+	public void read(ByteBuffer dst, int storageOffset) 
+		throws DataIntegrityException {
+
+		int nbytes = dst.remaining();
+		ReadAhead ra;
+		synchronized(sequential){
+			if(tail != null && overlaps(tailBlock*(long)blockSize, blockSize,
+				storageOffset, nbytes)){
+				flushTail();
+			}
+			ra = takeReadAhead(storageOffset, nbytes);
+			if(maxReadAhead > 0){
+				if(storageOffset == lastReadEnd){
+					readAheadSize = Math.min(2*readAheadSize, maxReadAhead);
+					if(readAhead == null){
+						startReadAhead((long)storageOffset + nbytes);
+					}
+				}else{
+					readAheadSize = Math.min(maxReadAhead, 4*blockSize);
+				}
+			}
+			lastReadEnd = (long)storageOffset + nbytes;
+		}
+
+		int done = 0;
+		if(ra != null){
+			byte[] data = null;
+			try {
+				data = ra.data.get();
+			}catch(InterruptedException x){
+				Thread.currentThread().interrupt();
+			}catch(ExecutionException x){
+				// read it again below, and report any failure from there
+			}
+			if(data != null){
+				done = (int) Math.min(nbytes, ra.end-storageOffset);
+				slice(dst, 0, done).put(data, (int)(storageOffset-ra.start), done);
+			}
+		}
+		readDirect(slice(dst, done, nbytes-done), storageOffset+done);
+		dst.position(dst.limit());
+	}
+
+	private static boolean overlaps(long start1, long len1, long start2, 
+		long len2) {
+		return (start1 < start2+len2) && (start2 < start1+len1);
+	}
+
+	private void flushTail() throws DataIntegrityException {
+		// Callers hold <sequential>.
+		if(tail != null){
+			bs.writeBlock(tailBlock, tail, tailLo, tailLo, tailHi-tailLo);
+			tail = null;
+		}
+	}
+
+	private ReadAhead takeReadAhead(int storageOffset, int nbytes) {
+		// Callers hold <sequential>.  Return the read-ahead holding the start
+		// of this read, if any, and forget it once the read uses it up.
+		ReadAhead ra = readAhead;
+		if(ra == null){
+			return null;
+		}
+		if(storageOffset < ra.start || storageOffset >= ra.end){
+			dropReadAhead();
+			return null;
+		}
+		if((long)storageOffset + nbytes >= ra.end){
+			readAhead = null;
+		}
+		return ra;
+	}
+
+	private void dropReadAhead() {
+		if(readAhead != null){
+			readAhead.data.cancel(false);
+			readAhead = null;
+		}
+	}
+
+	private void dropReadAhead(int storageOffset, int nbytes) {
+		if(readAhead != null && overlaps(readAhead.start, 
+			readAhead.end-readAhead.start, storageOffset, nbytes)){
+			dropReadAhead();
+		}
+	}
+
+	private void startReadAhead(long start) throws DataIntegrityException {
+		// Callers hold <sequential>.
+		int len = (int) Math.min(readAheadSize, Integer.MAX_VALUE-start);
+		if(len <= 0){
+			return;
+		}
+		if(tail != null && overlaps(tailBlock*(long)blockSize, blockSize, 
+			start, len)){
+			flushTail();
+		}
+		ReadAhead ra = new ReadAhead();
+		ra.start = start;
+		ra.end = start+len;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(() -> {
+			// one run, not inRuns: this is already on the executor, and 
+			// mustn't wait on it
+			byte[] data = new byte[len];
+			readRun(data, 0, (int)start, len);
+			return data;
+		});
+		ra.data = task;
+		readAhead = ra;
+		executor.execute(task);
+	}
+
+	private void writeDirect(ByteBuffer src, int storageOffset) 
+		throws DataIntegrityException {
+
+		if(src.hasArray()){
+			int base = src.arrayOffset()+src.position();
+			inRuns(storageOffset, src.remaining(), 
+				(offset, runStorageOffset, runBytes) -> 
+					writeRun(src.array(), base+offset, runStorageOffset, runBytes));
+		}else{
+			inRuns(storageOffset, src.remaining(), 
+				(offset, runStorageOffset, runBytes) -> 
+					writeRun(slice(src, offset, runBytes), runStorageOffset));
+		}
+	}
+
+	private void readDirect(ByteBuffer dst, int storageOffset) 
+		throws DataIntegrityException {
+
+		if(dst.hasArray()){
+			int base = dst.arrayOffset()+dst.position();
+			inRuns(storageOffset, dst.remaining(), 
+				(offset, runStorageOffset, runBytes) -> 
+					readRun(dst.array(), base+offset, runStorageOffset, runBytes));
+		}else{
+			inRuns(storageOffset, dst.remaining(), 
+				(offset, runStorageOffset, runBytes) -> 
+					readRun(slice(dst, offset, runBytes), runStorageOffset));
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer b, int offset, int nbytes) {
+		ByteBuffer piece = b.duplicate();
+		piece.position(b.position()+offset);
+		piece.limit(piece.position()+nbytes);
+		return piece;
+	}
+
+	private void writeRun(byte[] buf, int bufOffset, int storageOffset, 
+		int nbytes) throws DataIntegrityException {
+
 		while(nbytes > 0){
 			int blockNum = storageOffset / blockSize;
 			int blockOffset = storageOffset % blockSize;
@@ -40,15 +427,52 @@ public class ArrayStore {
 			if(nbytes > (blockSize-blockOffset)){
 				nbytesThisTime = blockSize-blockOffset;
 			}
-			bs.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			if( (blockOffset == 0) && (nbytes >= 2*blockSize) ){
+				// a run of whole blocks goes down as one vectored write
+				int count = nbytes / blockSize;
+				nbytesThisTime = count*blockSize;
+				bs.writeBlocks(blockNum, count, buf, bufOffset);
+			}else{
+				bs.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			}
 			nbytes -= nbytesThisTime;
 			storageOffset += nbytesThisTime;
 			bufOffset += nbytesThisTime;
 		}
 	}
 
-	public void read(byte[] buf, int bufOffset, int storageOffset, int nbytes) 
+	private void writeRun(ByteBuffer src, int storageOffset) 
+		throws DataIntegrityException {
+
+		while(src.hasRemaining()){
+			int blockNum = storageOffset / blockSize;
+			int blockOffset = storageOffset % blockSize;
+			int nbytesThisTime = Math.min(src.remaining(), blockSize-blockOffset);
+			ByteBuffer piece = src.duplicate();
+			piece.limit(piece.position()+nbytesThisTime);
+			bs.writeBlock(blockNum, piece, blockOffset);
+			src.position(piece.position());
+			storageOffset += nbytesThisTime;
+		}
+	}
+
+	private void readRun(ByteBuffer dst, int storageOffset) 
 		throws DataIntegrityException {
+
+		while(dst.hasRemaining()){
+			int blockNum = storageOffset / blockSize;
+			int blockOffset = storageOffset % blockSize;
+			int nbytesThisTime = Math.min(dst.remaining(), blockSize-blockOffset);
+			ByteBuffer piece = dst.duplicate();
+			piece.limit(piece.position()+nbytesThisTime);
+			bs.readBlock(blockNum, piece, blockOffset);
+			dst.position(piece.position());
+			storageOffset += nbytesThisTime;
+		}
+	}
+
+	private void readRun(byte[] buf, int bufOffset, int storageOffset, 
+		int nbytes) throws DataIntegrityException {
 			
 		while(nbytes > 0){
 			int blockNum = storageOffset / blockSize;
@@ -57,10 +481,17 @@ public class ArrayStore {
 			if(nbytes > (blockSize-blockOffset)){
 				nbytesThisTime = blockSize-blockOffset;
 			}
-			bs.readBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			if( (blockOffset == 0) && (nbytes >= 2*blockSize) ){
+				// a run of whole blocks comes up as one vectored read
+				int count = nbytes / blockSize;
+				nbytesThisTime = count*blockSize;
+				bs.readBlocks(blockNum, count, buf, bufOffset);
+			}else{
+				bs.readBlock(blockNum, buf, bufOffset, blockOffset, nbytesThisTime);
+			}
 			nbytes -= nbytesThisTime;
 			storageOffset += nbytesThisTime;
 			bufOffset += nbytesThisTime;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -2,6 +2,8 @@
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -11,8 +13,6 @@ public class BlockDevice implements BlockStore {
 	private static final int BlockSize = 4096;
 	private static final int SuperBlockSize = 256;
 
-	private byte[] zeroBlockBytes = new byte[BlockSize];
-
 	private String pathPrefix;
 	private String pathForSB;
 
@@ -86,12 +86,25 @@ public class BlockDevice implements BlockStore {
 		int fileOffset, int nbytes, int fullSize) 
 		throws FileNotFoundException, IOException {
 
-		byte[] mybuf = new byte[fullSize];
-		readFromFile(filename, mybuf, 0, 0, fullSize);
-		for(int i=0; i<nbytes; ++i){
-			mybuf[fileOffset+i] = buf[bufOffset+i];
+		// Patch just the requested bytes in place.  A file that doesn't
+		// exist yet is created and extended to its full size, which leaves
+		// a sparse zero-filled hole around the bytes being written.
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(filename, "rw");
+		}catch(FileNotFoundException x){
+			createDirectoryParents(filename);
+			raf = new RandomAccessFile(filename, "rw");
+		}
+		try {
+			if(raf.length() < fullSize){
+				raf.setLength(fullSize);
+			}
+			raf.seek(fileOffset);
+			raf.write(buf, bufOffset, nbytes);
+		}finally{
+			raf.close();
 		}
-		writeEntireFile(filename, mybuf, 0, fullSize);
 	}
 
 	private void readFromFile(String filename, byte[] buf, int bufOffset, 
@@ -102,12 +115,25 @@ public class BlockDevice implements BlockStore {
 		try {
 			fis = new FileInputStream(filename);
 		} catch (FileNotFoundException x) {
-			writeEntireFile(filename, zeroBlockBytes, 0, BlockSize);
-			fis = new FileInputStream(filename);
+			// never written, so it reads as zeroes; don't create the file
+			Arrays.fill(buf, bufOffset, bufOffset+nbytes, (byte)0);
+			return;
+		}
+		try {
+			fis.skip(fileOffset);
+			int nread = 0;
+			while(nread < nbytes){
+				int n = fis.read(buf, bufOffset+nread, nbytes-nread);
+				if(n < 0){
+					// short file: the rest of it reads as zeroes
+					Arrays.fill(buf, bufOffset+nread, bufOffset+nbytes, (byte)0);
+					break;
+				}
+				nread += n;
+			}
+		}finally{
+			fis.close();
 		}
-		fis.skip(fileOffset);
-		fis.read(buf, bufOffset, nbytes);
-		fis.close();
 	}
 
 	private void destroyDirectoryContents(String pathPrefix) {
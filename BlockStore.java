@@ -1,4 +1,7 @@
 
+import java.nio.ByteBuffer;
+
+
 public interface BlockStore {
 	// Interface for a "block store" functionality that provides persistent
 	// storage of data. The store consists of a single "superblock" 
@@ -61,4 +64,133 @@ public interface BlockStore {
 	// completed due to tampering with data in the store.
 	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
 		int nbytes) throws DataIntegrityException;
-}
\ No newline at end of file
+
+	// Read whole ordinary blocks <firstBlock> thru <firstBlock+count-1>.
+	// Block firstBlock+i is copied into buf[bufOffset+i*blockSize()] thru
+	// buf[bufOffset+(i+1)*blockSize()-1].
+	// Stores that can do a run of blocks more cheaply than one block at a
+	// time (one large I/O, one pass of crypto, one tree walk) should 
+	// override the scatter/gather version below, which this calls.
+	public default void readBlocks(int firstBlock, int count, byte[] buf,
+		int bufOffset) throws DataIntegrityException {
+
+		readBlocks(consecutiveBlocks(firstBlock, count), buf, bufOffset);
+	}
+
+	// Write whole ordinary blocks <firstBlock> thru <firstBlock+count-1>,
+	// from the same buffer positions that readBlocks uses.
+	public default void writeBlocks(int firstBlock, int count, byte[] buf,
+		int bufOffset) throws DataIntegrityException {
+
+		writeBlocks(consecutiveBlocks(firstBlock, count), buf, bufOffset);
+	}
+
+	// Gather the whole ordinary blocks blockNums[0], blockNums[1], ... into
+	// consecutive block-sized pieces of buf, starting at buf[bufOffset].
+	public default void readBlocks(int[] blockNums, byte[] buf, int bufOffset)
+		throws DataIntegrityException {
+
+		int bs = blockSize();
+		for(int i=0; i<blockNums.length; ++i){
+			readBlock(blockNums[i], buf, bufOffset+i*bs, 0, bs);
+		}
+	}
+
+	// Scatter consecutive block-sized pieces of buf, starting at 
+	// buf[bufOffset], to the whole ordinary blocks blockNums[0], 
+	// blockNums[1], ...
+	public default void writeBlocks(int[] blockNums, byte[] buf, int bufOffset)
+		throws DataIntegrityException {
+
+		int bs = blockSize();
+		for(int i=0; i<blockNums.length; ++i){
+			writeBlock(blockNums[i], buf, bufOffset+i*bs, 0, bs);
+		}
+	}
+
+	// Read dst.remaining() bytes of an ordinary block, starting at byte
+	// <blockOffset>, into dst at its current position, and advance the
+	// position.  Works with heap and direct buffers; stores that can read
+	// straight into a buffer (e.g. from a FileChannel) should override this
+	// to avoid the intermediate copy the default makes for direct buffers.
+	public default void readBlock(int blockNum, ByteBuffer dst, int blockOffset)
+		throws DataIntegrityException {
+
+		int nbytes = dst.remaining();
+		if(dst.hasArray()){
+			readBlock(blockNum, dst.array(), dst.arrayOffset()+dst.position(), 
+				blockOffset, nbytes);
+			dst.position(dst.position()+nbytes);
+		}else{
+			byte[] tmp = new byte[nbytes];
+			readBlock(blockNum, tmp, 0, blockOffset, nbytes);
+			dst.put(tmp);
+		}
+	}
+
+	// Write src.remaining() bytes from src, at its current position, to an
+	// ordinary block starting at byte <blockOffset>, and advance the 
+	// position.
+	public default void writeBlock(int blockNum, ByteBuffer src, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = src.remaining();
+		if(src.hasArray()){
+			writeBlock(blockNum, src.array(), src.arrayOffset()+src.position(), 
+				blockOffset, nbytes);
+			src.position(src.position()+nbytes);
+		}else{
+			byte[] tmp = new byte[nbytes];
+			src.get(tmp);
+			writeBlock(blockNum, tmp, 0, blockOffset, nbytes);
+		}
+	}
+
+	// ByteBuffer versions of readBlocks/writeBlocks.  They transfer
+	// count*blockSize() bytes at the buffer's position, and advance it.
+	public default void readBlocks(int firstBlock, int count, ByteBuffer dst)
+		throws DataIntegrityException {
+
+		int nbytes = count*blockSize();
+		if(dst.hasArray()){
+			readBlocks(firstBlock, count, dst.array(), 
+				dst.arrayOffset()+dst.position());
+			dst.position(dst.position()+nbytes);
+		}else{
+			int end = dst.position()+nbytes;
+			for(int i=0; i<count; ++i){
+				ByteBuffer piece = dst.duplicate();
+				piece.limit(piece.position()+blockSize());
+				readBlock(firstBlock+i, piece, 0);
+				dst.position(piece.position());
+			}
+			dst.position(end);
+		}
+	}
+
+	public default void writeBlocks(int firstBlock, int count, ByteBuffer src)
+		throws DataIntegrityException {
+
+		int nbytes = count*blockSize();
+		if(src.hasArray()){
+			writeBlocks(firstBlock, count, src.array(), 
+				src.arrayOffset()+src.position());
+			src.position(src.position()+nbytes);
+		}else{
+			for(int i=0; i<count; ++i){
+				ByteBuffer piece = src.duplicate();
+				piece.limit(piece.position()+blockSize());
+				writeBlock(firstBlock+i, piece, 0);
+				src.position(piece.position());
+			}
+		}
+	}
+
+	public static int[] consecutiveBlocks(int firstBlock, int count) {
+		int[] ret = new int[count];
+		for(int i=0; i<count; ++i){
+			ret[i] = firstBlock+i;
+		}
+		return ret;
+	}
+}
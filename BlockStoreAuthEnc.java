@@ -1,59 +1,480 @@
 // This class provides a BlockStore that guarantees confidentiality and
 // integrity of all the data it holds.  The constructor takes a BlockStore
-// (which doesn't guarantee confidentiality and integrity).
+// (which doesn't guarantee confidentiality and integrity), and a key.
+// There are two constructions: the original one, below, built from PRF
+// counter-mode encryption and a PRF tag, and the AEAD CipherSuites.
 //
-// YOU WILL MODIFY THIS FILE.  The code we have provided here does not
-// actually do anything to provide confidentiality and integrity.  You have
-// to fix that.
+// Constructed with a key, the store encrypts and authenticates every block
+// (and the superblock) on its own, so blocks can be processed in any order
+// and on any number of threads.  Each underlying block holds
+//   bytes 0 thru 15     a nonce, chosen at random on every write
+//   bytes 16 thru 47    a tag: PRF(macKey, blockNum || nonce || ciphertext)
+//   bytes 48 thru end   the ciphertext
+// so blockSize() and superBlockSize() are OverheadBytes less than those of
+// the underlying store.  The ciphertext is the data XORed with a counter-mode
+// keystream, whose 32-byte piece <c> is PRF(encKey, nonce || blockNum || c),
+// so any byte range of a block can be decrypted without the rest.  A read
+// checks the tag over the whole block, then decrypts just the bytes asked
+// for.  A partial write re-encrypts the whole block under a fresh nonce.
+//
+// A block that is all zeroes underneath, ciphertext included, has never
+// been written, and reads as zeroes, like a block of the underlying store.
+// Any other block must carry a good tag, so zeroing just a block's nonce and
+// tag is caught.  Tags bind each block to its number, so blocks can't be
+// swapped; they don't stop an old version of a block from being put back,
+// and that includes zeroing a whole block to put back its never-written
+// state.
+//
+// A CipherSuite can be given to use an AEAD cipher instead (AES-GCM or
+// ChaCha20-Poly1305, which the JVM runs with hardware help where it can).
+// Then each underlying block is
+//   bytes 0 thru 11     a random nonce
+//   bytes 12 thru ...   the ciphertext, with the block number as associated
+//                       data, followed by its 16-byte tag
+// and the overhead is 28 bytes.  An AEAD cipher has to decrypt the whole
+// block to check the tag.  Random 96-bit nonces are safe for about 2^32
+// block writes under one key.
+//
+// readBlocks and writeBlocks process their blocks in parallel.
+//
+// A partial write reads the block, patches it and seals it again, so two of
+// them at once could each put back the other's old bytes.  Writes to the
+// same block (whole or partial, and likewise for the superblock) therefore
+// go one at a time, under one of WriteLockStripes locks picked by block
+// number.
+//
+// Constructed without a key, the store passes everything straight through.
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+import javax.crypto.Cipher;
 
 import java.io.FileNotFoundException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.ShortBufferException;
 
 
 public class BlockStoreAuthEnc implements BlockStore {
+	public static final int NonceSizeBytes = 16;
+	public static final int TagSizeBytes = PRF.OutputSizeBytes;
+	public static final int OverheadBytes = NonceSizeBytes + TagSizeBytes;
+
+	private static final int SuperBlockNum = -1;
+	private static final int ParallelThreshold = 4;   // in blocks
+	private static final int WriteLockStripes = 64;
+
 	private BlockStore    dev;
 	private PRGen         prg;
+	private boolean       encrypting = false;
+	private CipherSuite   suite = CipherSuite.LEGACY;
+	private int           nonceBytes = NonceSizeBytes;
+	private int           overhead = OverheadBytes;
+	private ThreadLocal<PRF> keystreamPrf;
+	private ThreadLocal<PRF> macPrf;
+	private byte[]        aeadKey;
+	private ThreadLocal<Cipher> aeadCipher;
+	private ReentrantLock[] writeLocks;
 
-	public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg) 
+	public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg)
 	throws DataIntegrityException {
 		dev = underStore;
-		prg = thePrg; 
+		prg = thePrg;
+		writeLocks = new ReentrantLock[WriteLockStripes];
+		for(int i=0; i<writeLocks.length; ++i){
+			writeLocks[i] = new ReentrantLock();
+		}
+	}
+
+	public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg, byte[] key)
+	throws DataIntegrityException {
+		// <key> must be PRF.KeySizeBytes long.  Separate keys for encryption
+		// and for tags are derived from it.
+		this(underStore, thePrg);
+		PRF kdf = new PRF(key);
+		byte[] encKey = kdf.eval(new byte[] { 'e' });
+		byte[] macKey = kdf.eval(new byte[] { 'm' });
+		// PRF is synchronized, so give each thread its own
+		keystreamPrf = ThreadLocal.withInitial(() -> new PRF(encKey));
+		macPrf = ThreadLocal.withInitial(() -> new PRF(macKey));
+		encrypting = true;
+	}
+
+	public BlockStoreAuthEnc(BlockStore underStore, PRGen thePrg, byte[] key,
+		CipherSuite theSuite) throws DataIntegrityException {
+		// As above, but using <theSuite>; LEGACY is the construction above.
+		this(underStore, thePrg, key);
+		if(theSuite.isAEAD()){
+			suite = theSuite;
+			nonceBytes = CipherSuite.NonceSizeBytes;
+			overhead = CipherSuite.NonceSizeBytes + CipherSuite.TagSizeBytes;
+			aeadKey = new PRF(key).eval(new byte[] { 'a' });
+			aeadCipher = ThreadLocal.withInitial(theSuite::newCipher);
+		}
+	}
+
+	public CipherSuite cipherSuite() {
+		return suite;
 	}
 
-	public void format() throws DataIntegrityException { 
+	public int overheadBytes() {
+		// how many bytes of each underlying block go to the nonce and tag
+		return encrypting ? overhead : 0;
+	}
+
+	public void format() throws DataIntegrityException {
 		dev.format();
 	}
 
 	public int blockSize() {
-		return dev.blockSize();
+		return encrypting ? dev.blockSize()-overhead : dev.blockSize();
 	}
 
 	public int superBlockSize() {
-		return dev.superBlockSize();
+		return encrypting ? dev.superBlockSize()-overhead
+			: dev.superBlockSize();
+	}
+
+	private ReentrantLock writeLock(int blockNum) {
+		return writeLocks[Math.floorMod(blockNum, WriteLockStripes)];
+	}
+
+	private void checkBounds(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes, int size) {
+
+		if( (blockNum<0) || (bufOffset<0) || (blockOffset<0) || (nbytes<0)
+			|| (bufOffset+nbytes > buf.length) || (blockOffset+nbytes > size) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void newNonces(byte[] nonces) {
+		if(prg instanceof StripedPRGen){
+			prg.nextBytes(nonces);
+			return;
+		}
+		// the PRGen may be shared with other code that doesn't lock it, but
+		// at least our own threads won't use it at the same time
+		synchronized(prg){
+			prg.nextBytes(nonces);
+		}
+	}
+
+	private void crypt(int blockNum, byte[] raw, int rawOffset, byte[] in,
+		int inOffset, byte[] out, int outOffset, int position, int nbytes) {
+		// XOR <nbytes> bytes of <in> with the keystream of the block whose
+		// nonce is at raw[rawOffset], starting at byte <position> of it.
+		PRF prf = keystreamPrf.get();
+		byte[] counterIn = new byte[NonceSizeBytes + 8];
+		System.arraycopy(raw, rawOffset, counterIn, 0, NonceSizeBytes);
+		byte[] keystream = new byte[PRF.OutputSizeBytes];
+		int done = 0;
+		while(done < nbytes){
+			int pos = position + done;
+			int counter = pos / PRF.OutputSizeBytes;
+			int skip = pos % PRF.OutputSizeBytes;
+			LongUtils.longToBytes((((long)blockNum) << 32)
+				| (counter & 0xffffffffL), counterIn, NonceSizeBytes);
+			try {
+				prf.eval(counterIn, 0, counterIn.length, keystream, 0);
+			}catch(ShortBufferException x){
+				throw new IllegalStateException(x);
+			}
+			int n = Math.min(PRF.OutputSizeBytes-skip, nbytes-done);
+			for(int i=0; i<n; ++i){
+				out[outOffset+done+i] =
+					(byte)(in[inOffset+done+i] ^ keystream[skip+i]);
+			}
+			done += n;
+		}
+	}
+
+	private byte[] computeTag(int blockNum, byte[] raw, int rawOffset,
+		int size) {
+		PRF prf = macPrf.get();
+		byte[] num = new byte[8];
+		LongUtils.longToBytes(blockNum, num, 0);
+		prf.update(num);
+		prf.update(raw, rawOffset, NonceSizeBytes);
+		return prf.eval(raw, rawOffset+OverheadBytes, size);
 	}
 
-	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
+	private void seal(int blockNum, byte[] plain, int plainOffset, byte[] raw,
+		int rawOffset, int size, byte[] nonces, int nonceOffset) {
+		// Encrypt and tag <size> bytes of <plain> into raw[rawOffset] onward.
+		System.arraycopy(nonces, nonceOffset, raw, rawOffset, nonceBytes);
+		if(suite.isAEAD()){
+			try {
+				Cipher cipher = startAEAD(Cipher.ENCRYPT_MODE, blockNum, raw,
+					rawOffset);
+				cipher.doFinal(plain, plainOffset, size, raw, rawOffset+nonceBytes);
+			}catch(GeneralSecurityException x){
+				throw new IllegalStateException(x);
+			}
+			return;
+		}
+		crypt(blockNum, raw, rawOffset, plain, plainOffset, raw,
+			rawOffset+OverheadBytes, 0, size);
+		byte[] tag = computeTag(blockNum, raw, rawOffset, size);
+		System.arraycopy(tag, 0, raw, rawOffset+NonceSizeBytes, TagSizeBytes);
+	}
+
+	private void open(int blockNum, byte[] raw, int rawOffset, int size,
+		int blockOffset, int nbytes, byte[] dst, int dstOffset)
+	throws DataIntegrityException {
+		// Check the tag of the sealed block at raw[rawOffset], then decrypt
+		// bytes <blockOffset> thru <blockOffset+nbytes-1> of it into <dst>.
+		if(neverWritten(raw, rawOffset, size)){
+			Arrays.fill(dst, dstOffset, dstOffset+nbytes, (byte)0);
+			return;
+		}
+		if(suite.isAEAD()){
+			byte[] plain = new byte[size];
+			try {
+				Cipher cipher = startAEAD(Cipher.DECRYPT_MODE, blockNum, raw,
+					rawOffset);
+				cipher.doFinal(raw, rawOffset+nonceBytes,
+					size+CipherSuite.TagSizeBytes, plain, 0);
+			}catch(AEADBadTagException x){
+				throw new DataIntegrityException("bad tag on block " + blockNum);
+			}catch(GeneralSecurityException x){
+				throw new IllegalStateException(x);
+			}
+			System.arraycopy(plain, blockOffset, dst, dstOffset, nbytes);
+			return;
+		}
+		byte[] tag = computeTag(blockNum, raw, rawOffset, size);
+		byte[] stored = Arrays.copyOfRange(raw, rawOffset+NonceSizeBytes,
+			rawOffset+OverheadBytes);
+		if(! MessageDigest.isEqual(tag, stored)){
+			throw new DataIntegrityException("bad tag on block " + blockNum);
+		}
+		crypt(blockNum, raw, rawOffset, raw, rawOffset+OverheadBytes+blockOffset,
+			dst, dstOffset, blockOffset, nbytes);
+	}
+
+	private boolean neverWritten(byte[] raw, int rawOffset, int size) {
+		// True if the whole sealed block is zeroes.  A written block's random
+		// nonce almost always ends this at its first byte.
+		for(int i=0; i<overhead+size; ++i){
+			if(raw[rawOffset+i] != 0)    return false;
+		}
+		return true;
+	}
+
+	private Cipher startAEAD(int mode, int blockNum, byte[] raw, int rawOffset)
+	throws GeneralSecurityException {
+		// Set up this thread's cipher for the block whose nonce is at
+		// raw[rawOffset], with the block number as associated data.
+		Cipher cipher = aeadCipher.get();
+		try {
+			suite.init(cipher, mode, aeadKey, raw, rawOffset);
+		}catch(InvalidKeyException x){
+			// ChaCha20 won't be set up twice running with the same key and
+			// nonce, as happens when a block is read twice; a new one will
+			cipher = suite.newCipher();
+			aeadCipher.set(cipher);
+			suite.init(cipher, mode, aeadKey, raw, rawOffset);
+		}
+		byte[] num = new byte[8];
+		LongUtils.longToBytes(blockNum, num, 0);
+		cipher.updateAAD(num);
+		return cipher;
+	}
+
+	private interface BlockTask {
+		void run(int i) throws DataIntegrityException;
+	}
+
+	private void forEachBlock(int count, BlockTask task)
+	throws DataIntegrityException {
+		// Run task(0) thru task(count-1), in parallel if there are enough.
+		if(count < ParallelThreshold){
+			for(int i=0; i<count; ++i){
+				task.run(i);
+			}
+			return;
+		}
+		AtomicReference<DataIntegrityException> failure =
+			new AtomicReference<DataIntegrityException>();
+		IntStream.range(0, count).parallel().forEach(i -> {
+			try {
+				task.run(i);
+			}catch(DataIntegrityException x){
+				failure.compareAndSet(null, x);
+			}
+		});
+		if(failure.get() != null){
+			throw failure.get();
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
 		int nbytes) throws DataIntegrityException {
 
-		dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		if(! encrypting){
+			dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+			return;
+		}
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, superBlockSize());
+		byte[] raw = new byte[dev.superBlockSize()];
+		dev.readSuperBlock(raw, 0, 0, raw.length);
+		open(SuperBlockNum, raw, 0, superBlockSize(), blockOffset, nbytes, buf,
+			bufOffset);
 	}
 
-	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
 		int nbytes) throws DataIntegrityException {
 
-		dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		if(! encrypting){
+			dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+			return;
+		}
+		int size = superBlockSize();
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, size);
+		ReentrantLock lock = writeLock(SuperBlockNum);
+		lock.lock();
+		try {
+			byte[] plain = new byte[size];
+			if(nbytes < size){
+				readSuperBlock(plain, 0, 0, size);
+			}
+			System.arraycopy(buf, bufOffset, plain, blockOffset, nbytes);
+			byte[] nonce = new byte[nonceBytes];
+			newNonces(nonce);
+			byte[] raw = new byte[dev.superBlockSize()];
+			seal(SuperBlockNum, plain, 0, raw, 0, size, nonce, 0);
+			dev.writeSuperBlock(raw, 0, 0, raw.length);
+		}finally{
+			lock.unlock();
+		}
 	}
 
-	public void readBlock(int blockNum, byte[] buf, int bufOffset, 
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
 		int blockOffset, int nbytes) throws DataIntegrityException {
 
-		dev.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		if(! encrypting){
+			dev.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			return;
+		}
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, blockSize());
+		byte[] raw = new byte[dev.blockSize()];
+		dev.readBlock(blockNum, raw, 0, 0, raw.length);
+		open(blockNum, raw, 0, blockSize(), blockOffset, nbytes, buf, bufOffset);
 	}
 
-	public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
 		int blockOffset, int nbytes) throws DataIntegrityException {
 
-		dev.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		if(! encrypting){
+			dev.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+			return;
+		}
+		int size = blockSize();
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, size);
+		ReentrantLock lock = writeLock(blockNum);
+		lock.lock();
+		try {
+			byte[] plain = buf;
+			int plainOffset = bufOffset;
+			if(nbytes < size){
+				// the new nonce changes the whole keystream, so the rest of
+				// the block has to be re-encrypted too
+				plain = new byte[size];
+				plainOffset = 0;
+				readBlock(blockNum, plain, 0, 0, size);
+				System.arraycopy(buf, bufOffset, plain, blockOffset, nbytes);
+			}
+			byte[] nonce = new byte[nonceBytes];
+			newNonces(nonce);
+			byte[] raw = new byte[dev.blockSize()];
+			seal(blockNum, plain, plainOffset, raw, 0, size, nonce, 0);
+			dev.writeBlock(blockNum, raw, 0, 0, raw.length);
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer dst, int blockOffset)
+		throws DataIntegrityException {
+
+		if(! encrypting){
+			dev.readBlock(blockNum, dst, blockOffset);
+			return;
+		}
+		BlockStore.super.readBlock(blockNum, dst, blockOffset);
+	}
+
+	public void writeBlock(int blockNum, ByteBuffer src, int blockOffset)
+		throws DataIntegrityException {
+
+		if(! encrypting){
+			dev.writeBlock(blockNum, src, blockOffset);
+			return;
+		}
+		BlockStore.super.writeBlock(blockNum, src, blockOffset);
+	}
+
+	public void readBlocks(int[] blockNums, byte[] buf, int bufOffset)
+		throws DataIntegrityException {
+
+		if(! encrypting){
+			dev.readBlocks(blockNums, buf, bufOffset);
+			return;
+		}
+		int size = blockSize();
+		int rawSize = dev.blockSize();
+		if( (bufOffset < 0) || (bufOffset + blockNums.length*size > buf.length) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		byte[] raw = new byte[blockNums.length * rawSize];
+		dev.readBlocks(blockNums, raw, 0);
+		forEachBlock(blockNums.length, i -> open(blockNums[i], raw, i*rawSize,
+			size, 0, size, buf, bufOffset+i*size));
+	}
+
+	public void writeBlocks(int[] blockNums, byte[] buf, int bufOffset)
+		throws DataIntegrityException {
+
+		if(! encrypting){
+			dev.writeBlocks(blockNums, buf, bufOffset);
+			return;
+		}
+		int size = blockSize();
+		int rawSize = dev.blockSize();
+		if( (bufOffset < 0) || (bufOffset + blockNums.length*size > buf.length) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		byte[] nonces = new byte[blockNums.length * nonceBytes];
+		newNonces(nonces);
+		byte[] raw = new byte[blockNums.length * rawSize];
+		forEachBlock(blockNums.length, i -> seal(blockNums[i], buf,
+			bufOffset+i*size, raw, i*rawSize, size, nonces, i*nonceBytes));
+		// take every stripe these blocks fall in, in stripe order, so that
+		// two bulk writes can't deadlock
+		boolean[] stripes = new boolean[WriteLockStripes];
+		for(int blockNum : blockNums){
+			stripes[Math.floorMod(blockNum, WriteLockStripes)] = true;
+		}
+		int locked = 0;
+		try {
+			for(; locked<stripes.length; ++locked){
+				if(stripes[locked]){
+					writeLocks[locked].lock();
+				}
+			}
+			dev.writeBlocks(blockNums, raw, 0);
+		}finally{
+			for(int i=0; i<locked; ++i){
+				if(stripes[i]){
+					writeLocks[i].unlock();
+				}
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -12,6 +12,30 @@
 //   should be in a state set up previously by a BlockStoreMultiplexor.
 //   If <ws> is freshly formatted, then <bsm> will contain zero BlockStores.
 //
+// BlockStoreMultiplexor bsm = BlockStoreMultiplexor(BlockStore ws, int layout);
+//   Same, but if <ws> is freshly formatted, lay it out using <layout>.
+//   LayoutLegacy (the default) threads a 4-ary tree of pointers through the
+//   data blocks themselves.  LayoutIndexed keeps the pointers in separate
+//   index blocks with blockSize/8 children each, so lookups need only 2-3
+//   levels even for multi-GiB stores, and data blocks use the whole wrapped
+//   block.  The layout is recorded in the wrapped superblock, so images
+//   written by either layout (including ones written before the layout
+//   field existed) open correctly.
+//
+//  bsm.deleteSubStore(int idx);
+//  bsm.truncateSubStore(int idx, int fromBlock);
+//  bsm.trimSubStore(int idx, int firstBlock, int count);
+//    Free the space used by all, the tail, or a range of the blocks of the
+//    <idx>'th BlockStore, so that it can be reused for other blocks.  Freed
+//    blocks read as zeroes afterwards.  A deleted store keeps its index but
+//    is empty.  Trimming a range needs LayoutIndexed.
+//
+//  bsm.setReservationSize(int nblocks);
+//  bsm.flush();
+//    Allocate wrapped blocks <nblocks> at a time, persisting only the end
+//    of each reservation.  flush() returns the unused part of the current
+//    reservation; without it, a restart leaves that part unused.
+//
 //  int ns = bsm.numSubStores();
 //    Get the number of BlockStores that currently exist in <bsm>.
 //
@@ -27,85 +51,389 @@
 // like regular BlockStores.  The point of this class is that you start out
 // with one BlockStore, and on top of it you create a structure that can
 // give you as many BlockStores as you want.
+//
+// All of this is safe to use from many threads at once, as long as the
+// wrapped BlockStore is.  There is no lock around the whole multiplexor:
+//   - Blocks are handed out of the current reservation with a 
+//     compare-and-set; only refilling the reservation, the free map and the
+//     wrapped superblock are under a lock (allocLock).
+//   - Each store has its own read/write lock.  Reading and writing data 
+//     takes the read lock, so any number of threads can do that at once;
+//     anything that changes the store's tree (growing it, truncating or
+//     trimming it, its superblock) takes the write lock.
+//   - Block translations are cached in a concurrent map, so once a block
+//     has been looked up, finding it again takes no lock beyond the store's
+//     read lock.
+// Locks are only ever taken in the order: a store, then its ancestors in
+// the tree of master blocks, then allocLock.
 
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import java.io.FileNotFoundException;
 
 
 public class BlockStoreMultiplexor {
-	private static byte[]     masterBlockTemplate = null;
-	private static byte[]     dataBlockTemplate = null;
+  // On-disk layouts.  The layout is chosen when the wrapped store is fresh
+  // and recorded in the wrapped superblock; an image without a layout field
+  // (all zeroes) is a LayoutLegacy image.
+  public static final int LayoutLegacy = 0;   // 4-ary tree threaded through the data blocks
+  public static final int LayoutIndexed = 1;  // radix tree of dedicated index blocks
+
+	private byte[]            masterBlockTemplate;
+	private byte[]            dataBlockTemplate;    // LayoutLegacy only
+	private byte[]            indexBlockTemplate;   // index and free-map directory blocks
+	private byte[]            zeroBlock;
 
 	private BlockStore        wrappedStore;
 	private List<Multiplexed> stores;
-	private int               firstFreeBlock;
+  // the persisted high-water mark of allocation (reservedLimit) in the top
+  // half, and the first never-allocated block (firstFreeBlock) in the
+  // bottom half, so that both can be changed together atomically
+  private AtomicLong        allocState;
+  private volatile int      reservationSize = 1;
+  // guards freeBlocks, the free map and writes to the wrapped superblock
+  private final Object      allocLock = new Object();
+  private BitSet            freeBlocks = new BitSet();  // freed blocks below firstFreeBlock
+  private volatile boolean  haveFreeBlocks;
+  private int               freeMapDir;     // directory block of the free map, 0 if none
+  private volatile int      lastAllocated = -1;
+  private int               layout;
   private int               msbSize = 64;   // size of superblock exposed to multiplexed stores
   private int               mPtrSize = 8;   // size of a block-pointer
   private int               mNumPtrs;       // number of block-pointers in a metablock
   private int               dPtrSize = mPtrSize;  // size of a datablock-pointer
   private int               dNumPtrs = 4;   // number of block-pointers in a data block
   private int               dbSize;
+  private int               iNumPtrs;       // number of block-pointers in an index block
+  private int               rootOffset;     // offset of data-root pointer in a master block
+  private int               depthOffset;    // offset of index depth in a master block
+
+  // max number of logical-to-physical block translations cached per store
+  private static final int  MaxCachedTranslations = 4096;
     
   public BlockStoreMultiplexor(BlockStore ws) throws DataIntegrityException {
+    this(ws, LayoutLegacy);
+  }
+
+  public BlockStoreMultiplexor(BlockStore ws, int newLayout) 
+  throws DataIntegrityException {
+    // <newLayout> is only used if <ws> is freshly formatted; otherwise the
+    // layout recorded in <ws> is used.
     wrappedStore = ws;
+    int bs = wrappedStore.blockSize();
+
+    byte[] buf = new byte[24];
+    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-24, 24);
+    layout = (int) LongUtils.bytesToLong(buf, 0);
+    long numStores = LongUtils.bytesToLong(buf, 8);
+    int firstFreeBlock = (int) LongUtils.bytesToLong(buf, 16);
+    allocState = new AtomicLong(allocState(firstFreeBlock, firstFreeBlock));
+    if(firstFreeBlock == 0 && layout != newLayout){
+      layout = newLayout;
+      LongUtils.longToBytes((long)layout, buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-24, 8);
+    }
+    if(layout != LayoutLegacy && layout != LayoutIndexed){
+      throw new DataIntegrityException("unknown multiplexor layout");
+    }
 
-    byte[] buf = new byte[16];
-    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-16, 16);
-    long numStores = LongUtils.bytesToLong(buf, 0);
-    stores = new Vector<Multiplexed>();
+    List<Multiplexed> existing = new ArrayList<Multiplexed>();
     for(int i=0; i<numStores; ++i){
-      stores.add(new Multiplexed(i));
+      existing.add(new Multiplexed(i));
     }
-    firstFreeBlock = (int) LongUtils.bytesToLong(buf, 8);
+    stores = new CopyOnWriteArrayList<Multiplexed>(existing);
 
-    mNumPtrs = (wrappedStore.blockSize()-(msbSize+dPtrSize)) / mPtrSize;
-    dbSize = wrappedStore.blockSize()-(dPtrSize*dNumPtrs);
+    rootOffset = bs-(msbSize+dPtrSize);
+    if(layout == LayoutLegacy){
+      mNumPtrs = rootOffset / mPtrSize;
+      dbSize = bs-(dPtrSize*dNumPtrs);
+    }else{
+      // the master block also holds the depth of the index tree
+      depthOffset = rootOffset-8;
+      mNumPtrs = depthOffset / mPtrSize;
+      dbSize = bs;
+    }
+    iNumPtrs = bs / dPtrSize;
+    zeroBlock = new byte[bs];
 
     byte[] minusOne = new byte[8];
     LongUtils.longToBytes((long)(-1), minusOne, 0);
-    if(masterBlockTemplate == null){
-      buf = new byte[wrappedStore.blockSize()];
-      for(int i=0; i<mNumPtrs; ++i){
-        for(int j=0; j<8; ++j){
-          buf[i*8+j] = minusOne[j];
-        }
-      }
+    buf = new byte[bs];
+    for(int i=0; i<mNumPtrs; ++i){
       for(int j=0; j<8; ++j){
-        buf[wrappedStore.blockSize()-(msbSize+dPtrSize)+j] = minusOne[j];
+        buf[i*8+j] = minusOne[j];
       }
-      masterBlockTemplate = buf;
     }
-    if(dataBlockTemplate == null){
-      buf = new byte[wrappedStore.blockSize()];
+    for(int j=0; j<8; ++j){
+      buf[rootOffset+j] = minusOne[j];
+    }
+    masterBlockTemplate = buf;
+    if(layout == LayoutLegacy){
+      buf = new byte[bs];
       for(int i=0; i<dNumPtrs; ++i){
         for(int j=0; j<8; ++j){
-          int idx = (wrappedStore.blockSize()-dNumPtrs*dPtrSize)+i*dPtrSize+j;
+          int idx = (bs-dNumPtrs*dPtrSize)+i*dPtrSize+j;
           buf[idx] = minusOne[j];
         }
       }
       dataBlockTemplate = buf;
     }
+    buf = new byte[bs];
+    for(int i=0; i<iNumPtrs*dPtrSize; ++i){
+      buf[i] = minusOne[i%8];
+    }
+    indexBlockTemplate = buf;
 
     if(firstFreeBlock == 0){
-      wrappedStore.writeBlock(0, masterBlockTemplate, 0, 0, 
-        wrappedStore.blockSize());
+      wrappedStore.writeBlock(0, masterBlockTemplate, 0, 0, bs);
     }
+    loadFreeMap();
   }
 
-  private int allocateBlock() throws DataIntegrityException {
-    int ret = firstFreeBlock;
-    ++firstFreeBlock;
+  public void setReservationSize(int nblocks) throws DataIntegrityException {
+    // Allocate blocks in reservations of <nblocks> at a time.  Only the end
+    // of each reservation (a high-water mark) is written to the superblock,
+    // so bulk allocation costs one superblock write per <nblocks> blocks
+    // instead of one per block.  If the process dies, the unused tail of
+    // the current reservation is never handed out again, which is safe; a 
+    // call to flush() returns it.  The default of 1 persists every 
+    // allocation, as before.
+    if(nblocks < 1){
+      throw new IllegalArgumentException();
+    }
+    reservationSize = nblocks;
+  }
+
+  public void flush() throws DataIntegrityException {
+    // Give back the unused part of the current reservation, by recording
+    // the exact first free block as the high-water mark.  The reservation
+    // is closed in memory first, so no block past the new mark can be
+    // handed out while it is being written.
+    synchronized(allocLock){
+      long state;
+      int next;
+      do {
+        state = allocState.get();
+        next = firstFreeBlock(state);
+        if(next == reservedLimit(state)){
+          return;
+        }
+      } while(! allocState.compareAndSet(state, allocState(next, next)));
+      writeHighWaterMark(next);
+    }
+  }
+
+  private static long allocState(int reservedLimit, int firstFreeBlock) {
+    return (((long)reservedLimit) << 32) | (firstFreeBlock & 0xffffffffL);
+  }
+
+  private static int reservedLimit(long state) {
+    return (int)(state >>> 32);
+  }
 
+  private static int firstFreeBlock(long state) {
+    return (int) state;
+  }
+
+  private void writeHighWaterMark(int hwm) throws DataIntegrityException {
     byte[] buf = new byte[8];
-    LongUtils.longToBytes((long)firstFreeBlock, buf, 0);
+    LongUtils.longToBytes((long)hwm, buf, 0);
     wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+  }
+
+  private int allocateBlock() throws DataIntegrityException {
+    // Reuse a freed block if there is one.  Prefer the block right after
+    // the one allocated last, so that a store written sequentially stays
+    // sequential on the wrapped store; otherwise take the lowest free
+    // block and continue the run from there.  Only when nothing is freed
+    // fall back to the high-water allocator.  With nothing freed, a block
+    // from the current reservation needs no lock at all.
+    if(! haveFreeBlocks){
+      int ret = allocateReservedBlock();
+      if(ret != -1){
+        lastAllocated = ret;
+        return ret;
+      }
+    }
+    synchronized(allocLock){
+      if(! freeBlocks.isEmpty()){
+        int ret = lastAllocated+1;
+        if(! freeBlocks.get(ret)){
+          ret = freeBlocks.nextSetBit(0);
+        }
+        // clear the bit on disk before the block is linked in anywhere,
+        // so a crash can at worst leak the block
+        freeBlocks.clear(ret);
+        haveFreeBlocks = ! freeBlocks.isEmpty();
+        writeFreeMapByte(ret);
+        lastAllocated = ret;
+        return ret;
+      }
+      lastAllocated = allocateFreshBlock();
+      return lastAllocated;
+    }
+  }
 
+  private int allocateReservedBlock() {
+    // Take the next block of the current reservation, or return -1 if it
+    // is used up.
+    while(true){
+      long state = allocState.get();
+      int next = firstFreeBlock(state);
+      int limit = reservedLimit(state);
+      if(next >= limit){
+        return -1;
+      }
+      if(allocState.compareAndSet(state, allocState(limit, next+1))){
+        return next;
+      }
+    }
+  }
+
+  private int allocateFreshBlock() throws DataIntegrityException {
+    // Callers hold allocLock, which is what lets only one thread at a time
+    // start a new reservation.
+    int ret = allocateReservedBlock();
+    if(ret == -1){
+      // persist the new high-water mark before handing out any block below
+      // it; nobody else can allocate until allocState moves on
+      ret = firstFreeBlock(allocState.get());
+      int limit = ret + reservationSize;
+      writeHighWaterMark(limit);
+      allocState.set(allocState(limit, ret+1));
+    }
     return ret;
   }
 
+  // The free map is a bitmap with one bit per wrapped block, set if the
+  // block has been freed.  It is stored in bitmap blocks of blockSize*8
+  // bits each, found through a single directory block whose number is kept
+  // in the wrapped superblock.  A directory block of blockSize/8 pointers
+  // covers blockSize^2 blocks (16M blocks for 4 KiB blocks); blocks beyond
+  // that are never freed, just leaked.
+
+  private void loadFreeMap() throws DataIntegrityException {
+    byte[] buf = new byte[8];
+    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-32, 8);
+    freeMapDir = (int) LongUtils.bytesToLong(buf, 0);
+    if(freeMapDir == 0){
+      return;
+    }
+    int bitsPerBlock = wrappedStore.blockSize()*8;
+    byte[] dir = new byte[wrappedStore.blockSize()];
+    byte[] bitmap = new byte[wrappedStore.blockSize()];
+    wrappedStore.readBlock(freeMapDir, dir, 0, 0, dir.length);
+    for(int i=0; i<iNumPtrs; ++i){
+      int bitmapBlock = (int) LongUtils.bytesToLong(dir, i*dPtrSize);
+      if(bitmapBlock == -1){
+        continue;
+      }
+      wrappedStore.readBlock(bitmapBlock, bitmap, 0, 0, bitmap.length);
+      BitSet bits = BitSet.valueOf(bitmap);
+      for(int b=bits.nextSetBit(0); b>=0; b=bits.nextSetBit(b+1)){
+        freeBlocks.set(i*bitsPerBlock + b);
+      }
+    }
+    haveFreeBlocks = ! freeBlocks.isEmpty();
+  }
+
+  private int getFreeMapBlock(int blockNum, boolean create) 
+  throws DataIntegrityException {
+    // Return the bitmap block holding <blockNum>'s bit, or -1.  The free
+    // map's own blocks always come from the high-water allocator, and are
+    // never freed.
+    long dirSlot = blockNum / (wrappedStore.blockSize()*8L);
+    if(dirSlot >= iNumPtrs){
+      return -1;
+    }
+    byte[] buf = new byte[8];
+    if(freeMapDir == 0){
+      if(! create){
+        return -1;
+      }
+      int dir = allocateFreshBlock();
+      wrappedStore.writeBlock(dir, indexBlockTemplate, 0, 0, 
+        indexBlockTemplate.length);
+      LongUtils.longToBytes((long)dir, buf, 0);
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-32, 8);
+      freeMapDir = dir;
+    }
+    wrappedStore.readBlock(freeMapDir, buf, 0, (int)dirSlot*dPtrSize, 8);
+    int bitmapBlock = (int) LongUtils.bytesToLong(buf, 0);
+    if(bitmapBlock == -1 && create){
+      bitmapBlock = allocateFreshBlock();
+      wrappedStore.writeBlock(bitmapBlock, zeroBlock, 0, 0, zeroBlock.length);
+      LongUtils.longToBytes((long)bitmapBlock, buf, 0);
+      wrappedStore.writeBlock(freeMapDir, buf, 0, (int)dirSlot*dPtrSize, 8);
+    }
+    return bitmapBlock;
+  }
+
+  private void writeFreeMapByte(int blockNum) throws DataIntegrityException {
+    // Copy the in-memory bits for the 8 blocks sharing <blockNum>'s byte 
+    // out to the on-disk free map.
+    int bitmapBlock = getFreeMapBlock(blockNum, freeBlocks.get(blockNum));
+    if(bitmapBlock == -1){
+      return;
+    }
+    int first = blockNum & ~7;
+    byte[] b = new byte[1];
+    for(int i=0; i<8; ++i){
+      if(freeBlocks.get(first+i)){
+        b[0] |= (byte)(1<<i);
+      }
+    }
+    int byteOffset = (blockNum % (wrappedStore.blockSize()*8)) / 8;
+    wrappedStore.writeBlock(bitmapBlock, b, 0, byteOffset, 1);
+  }
+
+  private void freeBlocks(List<Integer> blockNums) 
+  throws DataIntegrityException {
+    // Callers must already have unlinked these blocks, so that a crash part
+    // way through leaks blocks rather than handing out ones still in use.
+    long limit = ((long)iNumPtrs) * wrappedStore.blockSize() * 8;
+    synchronized(allocLock){
+      for(int blockNum : blockNums){
+        if(blockNum < limit){
+          freeBlocks.set(blockNum);
+          haveFreeBlocks = true;
+          writeFreeMapByte(blockNum);
+        }
+      }
+    }
+  }
+
+  public void deleteSubStore(int idx) throws DataIntegrityException {
+    // Free all of the data of the <idx>'th BlockStore.  The store keeps its
+    // number and its master block, which anchors the tree of master blocks,
+    // and afterwards looks freshly created and formatted.
+    stores.get(idx).delete();
+  }
+
+  public void truncateSubStore(int idx, int fromBlock) 
+  throws DataIntegrityException {
+    // Free blocks <fromBlock> and up of the <idx>'th BlockStore.
+    stores.get(idx).truncate(fromBlock);
+  }
+
+  public void trimSubStore(int idx, int firstBlock, int count) 
+  throws DataIntegrityException {
+    // Free blocks <firstBlock> thru <firstBlock+count-1> of the <idx>'th
+    // BlockStore.  Only supported by LayoutIndexed, because in 
+    // LayoutLegacy each data block also holds pointers to later blocks.
+    stores.get(idx).trim(firstBlock, count);
+  }
+
   public int numSubStores() throws DataIntegrityException {
     return stores.size();
   }
@@ -114,34 +442,53 @@ public class BlockStoreMultiplexor {
     return stores.get(idx);
   }
 
-  public BlockStore newSubStore() throws DataIntegrityException {
+  public synchronized BlockStore newSubStore() throws DataIntegrityException {
+    // Stores are numbered in order of creation, so creating them is one at
+    // a time; nothing else locks the multiplexor itself.  The new store is
+    // linked into the tree of master blocks before it is counted, so a 
+    // crash in between leaks a block rather than counting a store that 
+    // has no master block.
     int storeNum = stores.size();
-
-	 // write new number of stores to superblock
-    byte[] buf = new byte[8];
-    LongUtils.longToBytes((long)(storeNum+1), buf, 0);
-    wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-16, 8);
-
     Multiplexed newStore = new Multiplexed(storeNum);
-    stores.add(newStore);
     int masterBlockNum = allocateBlock();
     wrappedStore.writeBlock(masterBlockNum, masterBlockTemplate, 0, 0, 
       wrappedStore.blockSize());
     newStore.writeMasterPointer(masterBlockNum);
 
+	 // write new number of stores to superblock
+    byte[] buf = new byte[8];
+    LongUtils.longToBytes((long)(storeNum+1), buf, 0);
+    synchronized(allocLock){
+      wrappedStore.writeSuperBlock(buf, 0, wrappedStore.superBlockSize()-16, 
+        8);
+    }
+    stores.add(newStore);
+
     return newStore;
   }
 
   class Multiplexed implements BlockStore {
     private int storeNum;
+    private volatile int masterBlockNum = -1;  // cached location of our master block
+    // Translations are dropped in no particular order once there are too
+    // many; a lookup doesn't lock anything, which matters more here than
+    // keeping the most recently used ones.
+    private Map<Integer,Integer> translations = 
+      new ConcurrentHashMap<Integer,Integer>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     Multiplexed(int sn) throws DataIntegrityException {
       storeNum = sn;
     }
 
+    private Multiplexed parent() {
+      return stores.get((storeNum-1) / mNumPtrs);
+    }
+
     private void writeMasterPointer(int masterBlockNum) 
     throws DataIntegrityException {
 
+      this.masterBlockNum = masterBlockNum;
       if(storeNum==0){
 		    // storeNum 0 always uses block 0; the code already knows this
         return;
@@ -150,47 +497,78 @@ public class BlockStoreMultiplexor {
       LongUtils.longToBytes((long)masterBlockNum, buf, 0);
 
       int slot = (storeNum-1) % mNumPtrs;
-      int parentStoreNum = (storeNum-1) / mNumPtrs;
-      int parentBlockNum = getMasterBlockNum(parentStoreNum, 0);
+      Multiplexed parent = parent();
+      int parentBlockNum = parent.getMyMasterBlockNum();
 
-      wrappedStore.writeBlock(parentBlockNum, buf, 0, slot*mPtrSize, mPtrSize);
+      // the slot shares a wrapped block with the parent's own superblock 
+      // and tree pointers
+      parent.lock.writeLock().lock();
+      try {
+        wrappedStore.writeBlock(parentBlockNum, buf, 0, slot*mPtrSize, 
+          mPtrSize);
+      }finally{
+        parent.lock.writeLock().unlock();
+      }
     }
 
     public void format() throws DataIntegrityException {
-      byte[] zeroes = new byte[msbSize];
-      writeSuperBlock(zeroes, 0, 0, msbSize);
+      lock.writeLock().lock();
+      try {
+        invalidateTranslations();
+        byte[] zeroes = new byte[msbSize];
+        writeSuperBlock(zeroes, 0, 0, msbSize);
+      }finally{
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void delete() throws DataIntegrityException {
+      lock.writeLock().lock();
+      try {
+        truncate(0);
+        format();
+      }finally{
+        lock.writeLock().unlock();
+      }
     }
 
     public int superBlockSize() {
       return msbSize;
     }
 
-    private int getMasterBlockNum(int num, int baseBlock) 
-    throws DataIntegrityException {
-      if(num == 0){
-        return baseBlock;
-      }else{
-        int slot = (num-1) % mNumPtrs;
-        int newNum = (num-1) / mNumPtrs;
-
-        byte[] slotContents = new byte[mPtrSize];
-        wrappedStore.readBlock(baseBlock, slotContents, 0, 
-          slot*mPtrSize, mPtrSize);
-        int newBase = (int) LongUtils.bytesToLong(slotContents, 0);
-
-        return getMasterBlockNum(newNum, newBase);
+    private int getMyMasterBlockNum() throws DataIntegrityException {
+      // Look our master block up in our parent's, which is found the same
+      // way, and so on up to store 0's in block 0.  A master block never
+      // moves, so each store only looks once.
+      if(masterBlockNum == -1){
+        if(storeNum == 0){
+          masterBlockNum = 0;
+        }else{
+          Multiplexed parent = parent();
+          int parentBlockNum = parent.getMyMasterBlockNum();
+          byte[] slotContents = new byte[mPtrSize];
+          parent.lock.readLock().lock();
+          try {
+            wrappedStore.readBlock(parentBlockNum, slotContents, 0, 
+              ((storeNum-1) % mNumPtrs)*mPtrSize, mPtrSize);
+          }finally{
+            parent.lock.readLock().unlock();
+          }
+          masterBlockNum = (int) LongUtils.bytesToLong(slotContents, 0);
+        }
       }
+      return masterBlockNum;
     }
 
     private int getDBRec(int num, int baseBlock) 
     throws DataIntegrityException {
-      if(num == 0){
-        return baseBlock;
-      }else{
+      // Walk down the tree of data blocks, one level per iteration,
+      // allocating any blocks on the path that don't exist yet.
+      byte[] slotContents = new byte[dPtrSize];
+      while(num != 0){
         int slot = (num-1) % dNumPtrs;
-        int newNum = (num-1) / dNumPtrs;
+        num = (num-1) / dNumPtrs;
 
-        byte[] slotContents = new byte[dPtrSize];
         wrappedStore.readBlock(baseBlock, slotContents, 0, 
           wrappedStore.blockSize()-dPtrSize*(dNumPtrs-slot), dPtrSize); 
         int newBase = (int) LongUtils.bytesToLong(slotContents, 0);
@@ -205,22 +583,69 @@ public class BlockStoreMultiplexor {
           wrappedStore.writeBlock(baseBlock, slotContents, 0, 
           wrappedStore.blockSize()-dPtrSize*(dNumPtrs-slot), dPtrSize);
         }
-        return getDBRec(newNum, newBase);
+        baseBlock = newBase;
+      }
+      return baseBlock;
+    }
+
+    private int lockAndTranslate(int blockNum) throws DataIntegrityException {
+      // Take our read lock and return where <blockNum> lives.  The caller
+      // must unlock the read lock when done with the block; if this throws,
+      // no lock is held.  A data block never moves once it has been
+      // allocated, so a cached translation stays valid until the store's
+      // layout is reset, which takes the write lock.
+      lock.readLock().lock();
+      Integer cached = translations.get(blockNum);
+      if(cached != null){
+        return cached;
+      }
+      lock.readLock().unlock();
+
+      // the lookup might have to grow the tree
+      lock.writeLock().lock();
+      try {
+        int realBlockNum = getDataBlockNum(blockNum);
+        lock.readLock().lock();
+        return realBlockNum;
+      }finally{
+        lock.writeLock().unlock();
       }
     }
 
     private int getDataBlockNum(int blockNum) throws DataIntegrityException {
-      int mblock = getMasterBlockNum(storeNum, 0);
+      // Callers hold the write lock.
+      Integer cached = translations.get(blockNum);
+      if(cached != null){
+        return cached;
+      }
+
+      int realBlockNum;
+      if(layout == LayoutIndexed){
+        realBlockNum = getIndexedBlockNum(blockNum);
+      }else{
+        realBlockNum = getLegacyBlockNum(blockNum);
+      }
+      if(translations.size() >= MaxCachedTranslations){
+        Iterator<Integer> it = translations.keySet().iterator();
+        if(it.hasNext()){
+          it.next();
+          it.remove();
+        }
+      }
+      translations.put(blockNum, realBlockNum);
+      return realBlockNum;
+    }
+
+    private int getLegacyBlockNum(int blockNum) throws DataIntegrityException {
+      int mblock = getMyMasterBlockNum();
       byte[] dbBuf = new byte[dPtrSize];
-      wrappedStore.readBlock(mblock, dbBuf, 0, 
-        wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
+      wrappedStore.readBlock(mblock, dbBuf, 0, rootOffset, dPtrSize);
       int dbNum = (int) LongUtils.bytesToLong(dbBuf, 0);
       if(dbNum == -1){
 		    // no data blocks exist in this store, need to allocate the first one
         dbNum = allocateBlock();
         LongUtils.longToBytes((long)dbNum, dbBuf, 0);
-        wrappedStore.writeBlock(mblock, dbBuf, 0, 
-          wrappedStore.blockSize()-(msbSize+dPtrSize), dPtrSize);
+        wrappedStore.writeBlock(mblock, dbBuf, 0, rootOffset, dPtrSize);
 
 		    // fill in the data block
         wrappedStore.writeBlock(dbNum, dataBlockTemplate, 0, 0, 
@@ -229,6 +654,244 @@ public class BlockStoreMultiplexor {
       return getDBRec(blockNum, dbNum);
     }
 
+    private int getIndexedBlockNum(int blockNum) 
+    throws DataIntegrityException {
+      // The master block holds the depth of the index tree and a pointer to
+      // its root.  An index block at height h covers iNumPtrs^h data blocks;
+      // its children are data blocks when h is 1.
+      int mblock = getMyMasterBlockNum();
+      byte[] hdr = new byte[16];
+      wrappedStore.readBlock(mblock, hdr, 0, depthOffset, 16);
+      int depth = (int) LongUtils.bytesToLong(hdr, 0);
+      int root = (int) LongUtils.bytesToLong(hdr, 8);
+
+      long span = 1;
+      for(int i=0; i<depth; ++i){
+        span *= iNumPtrs;
+      }
+      if(root == -1 || blockNum >= span){
+        // grow the tree upwards until it covers blockNum; the old root, if
+        // any, becomes child 0 of the new root
+        if(root == -1){
+          depth = 0;
+          span = 1;
+        }
+        do {
+          int newRoot = allocateBlock();
+          byte[] index = indexBlockTemplate.clone();
+          if(root != -1){
+            LongUtils.longToBytes((long)root, index, 0);
+          }
+          wrappedStore.writeBlock(newRoot, index, 0, 0, index.length);
+          root = newRoot;
+          ++depth;
+          span *= iNumPtrs;
+        } while(blockNum >= span);
+        LongUtils.longToBytes((long)depth, hdr, 0);
+        LongUtils.longToBytes((long)root, hdr, 8);
+        wrappedStore.writeBlock(mblock, hdr, 0, depthOffset, 16);
+      }
+
+      byte[] ptr = new byte[dPtrSize];
+      int base = root;
+      span /= iNumPtrs;
+      for(int level=depth; level>0; --level){
+        int slot = (int)((blockNum / span) % iNumPtrs);
+        wrappedStore.readBlock(base, ptr, 0, slot*dPtrSize, dPtrSize);
+        int child = (int) LongUtils.bytesToLong(ptr, 0);
+        if(child == -1){
+          child = allocateBlock();
+          if(level == 1){
+            wrappedStore.writeBlock(child, zeroBlock, 0, 0, zeroBlock.length);
+          }else{
+            wrappedStore.writeBlock(child, indexBlockTemplate, 0, 0, 
+              indexBlockTemplate.length);
+          }
+          LongUtils.longToBytes((long)child, ptr, 0);
+          wrappedStore.writeBlock(base, ptr, 0, slot*dPtrSize, dPtrSize);
+        }
+        base = child;
+        span /= iNumPtrs;
+      }
+      return base;
+    }
+
+    private void invalidateTranslations() {
+      translations.clear();
+    }
+
+    private void truncate(int fromBlock) throws DataIntegrityException {
+      lock.writeLock().lock();
+      try {
+        truncateLocked(fromBlock);
+      }finally{
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void truncateLocked(int fromBlock) throws DataIntegrityException {
+      if(layout == LayoutIndexed){
+        freeIndexedRange(fromBlock, Integer.MAX_VALUE);
+        return;
+      }
+      // In the legacy tree, getDBRec takes the root's slot from the lowest
+      // base-4 digit of the block number, so a block n at depth d has
+      // children n + 4^d*1 thru n + 4^d*4.  Every descendant of a block
+      // >= fromBlock is therefore also >= fromBlock, and whole subtrees can
+      // be cut off.
+      int mblock = getMyMasterBlockNum();
+      byte[] ptr = new byte[dPtrSize];
+      wrappedStore.readBlock(mblock, ptr, 0, rootOffset, dPtrSize);
+      int root = (int) LongUtils.bytesToLong(ptr, 0);
+      if(root == -1){
+        return;
+      }
+      List<Integer> freed = new ArrayList<Integer>();
+      if(fromBlock <= 0){
+        LongUtils.longToBytes((long)(-1), ptr, 0);
+        wrappedStore.writeBlock(mblock, ptr, 0, rootOffset, dPtrSize);
+        collectLegacySubtree(root, freed);
+      }else{
+        truncateLegacy(0, 1, root, fromBlock, freed);
+      }
+      invalidateTranslations();
+      freeBlocks(freed);
+    }
+
+    private void truncateLegacy(long num, long childWeight, int block, 
+      int fromBlock, List<Integer> freed) throws DataIntegrityException {
+      // <num> is below fromBlock; unlink its children that aren't.  The
+      // child in slot s is block num + childWeight*(s+1), where childWeight
+      // is 4^depth of <num>.
+      byte[] ptrs = new byte[dPtrSize*dNumPtrs];
+      int ptrsOffset = wrappedStore.blockSize()-dPtrSize*dNumPtrs;
+      wrappedStore.readBlock(block, ptrs, 0, ptrsOffset, ptrs.length);
+      for(int slot=0; slot<dNumPtrs; ++slot){
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*dPtrSize);
+        if(child == -1){
+          continue;
+        }
+        long childNum = num + childWeight*(slot+1);
+        if(childNum >= fromBlock){
+          byte[] minusOne = new byte[dPtrSize];
+          LongUtils.longToBytes((long)(-1), minusOne, 0);
+          wrappedStore.writeBlock(block, minusOne, 0, 
+            ptrsOffset+slot*dPtrSize, dPtrSize);
+          collectLegacySubtree(child, freed);
+        }else{
+          truncateLegacy(childNum, childWeight*dNumPtrs, child, fromBlock, 
+            freed);
+        }
+      }
+    }
+
+    private void collectLegacySubtree(int block, List<Integer> freed) 
+    throws DataIntegrityException {
+      byte[] ptrs = new byte[dPtrSize*dNumPtrs];
+      wrappedStore.readBlock(block, ptrs, 0, 
+        wrappedStore.blockSize()-dPtrSize*dNumPtrs, ptrs.length);
+      for(int slot=0; slot<dNumPtrs; ++slot){
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*dPtrSize);
+        if(child != -1){
+          collectLegacySubtree(child, freed);
+        }
+      }
+      freed.add(block);
+    }
+
+    private void trim(int firstBlock, int count) 
+    throws DataIntegrityException {
+      if(layout != LayoutIndexed){
+        throw new UnsupportedOperationException(
+          "trim needs LayoutIndexed");
+      }
+      if(firstBlock < 0 || count < 0){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      lock.writeLock().lock();
+      try {
+        freeIndexedRange(firstBlock, (long)firstBlock + count);
+      }finally{
+        lock.writeLock().unlock();
+      }
+    }
+
+    private void freeIndexedRange(long lo, long hi) 
+    throws DataIntegrityException {
+      // Free the data blocks numbered lo thru hi-1, and any index blocks
+      // that only cover blocks in that range.
+      int mblock = getMyMasterBlockNum();
+      byte[] hdr = new byte[16];
+      wrappedStore.readBlock(mblock, hdr, 0, depthOffset, 16);
+      int depth = (int) LongUtils.bytesToLong(hdr, 0);
+      int root = (int) LongUtils.bytesToLong(hdr, 8);
+      if(root == -1 || lo >= hi){
+        return;
+      }
+      long span = 1;
+      for(int i=0; i<depth; ++i){
+        span *= iNumPtrs;
+      }
+
+      List<Integer> freed = new ArrayList<Integer>();
+      if(lo <= 0 && hi >= span){
+        LongUtils.longToBytes(0L, hdr, 0);
+        LongUtils.longToBytes((long)(-1), hdr, 8);
+        wrappedStore.writeBlock(mblock, hdr, 0, depthOffset, 16);
+        collectIndexedSubtree(root, depth, freed);
+      }else{
+        freeIndexedRange(root, depth, 0, span, lo, hi, freed);
+      }
+      invalidateTranslations();
+      freeBlocks(freed);
+    }
+
+    private void freeIndexedRange(int block, int height, long base, 
+      long span, long lo, long hi, List<Integer> freed) 
+    throws DataIntegrityException {
+      // <block> is an index block covering data blocks base thru
+      // base+span-1, which overlap but aren't all inside lo thru hi-1
+      byte[] ptrs = new byte[wrappedStore.blockSize()];
+      wrappedStore.readBlock(block, ptrs, 0, 0, ptrs.length);
+      long childSpan = span / iNumPtrs;
+      byte[] minusOne = new byte[dPtrSize];
+      LongUtils.longToBytes((long)(-1), minusOne, 0);
+      for(int slot=0; slot<iNumPtrs; ++slot){
+        long childBase = base + slot*childSpan;
+        if(childBase+childSpan <= lo || childBase >= hi){
+          continue;
+        }
+        int child = (int) LongUtils.bytesToLong(ptrs, slot*dPtrSize);
+        if(child == -1){
+          continue;
+        }
+        if(childBase >= lo && childBase+childSpan <= hi){
+          wrappedStore.writeBlock(block, minusOne, 0, slot*dPtrSize, 
+            dPtrSize);
+          collectIndexedSubtree(child, height-1, freed);
+        }else{
+          freeIndexedRange(child, height-1, childBase, childSpan, lo, hi, 
+            freed);
+        }
+      }
+    }
+
+    private void collectIndexedSubtree(int block, int height, 
+      List<Integer> freed) throws DataIntegrityException {
+      // height 0 is a data block
+      if(height > 0){
+        byte[] ptrs = new byte[wrappedStore.blockSize()];
+        wrappedStore.readBlock(block, ptrs, 0, 0, ptrs.length);
+        for(int slot=0; slot<iNumPtrs; ++slot){
+          int child = (int) LongUtils.bytesToLong(ptrs, slot*dPtrSize);
+          if(child != -1){
+            collectIndexedSubtree(child, height-1, freed);
+          }
+        }
+      }
+      freed.add(block);
+    }
+
     public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset, 
       int nbytes) throws DataIntegrityException {
 
@@ -236,9 +899,14 @@ public class BlockStoreMultiplexor {
         throw new ArrayIndexOutOfBoundsException();
       }
 
-      int masterBlockNum = getMasterBlockNum(storeNum, 0);
-      wrappedStore.readBlock(masterBlockNum, buf, bufOffset, 
-        blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      int masterBlockNum = getMyMasterBlockNum();
+      lock.readLock().lock();
+      try {
+        wrappedStore.readBlock(masterBlockNum, buf, bufOffset, 
+          blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      }finally{
+        lock.readLock().unlock();
+      }
     }
 
     public void writeSuperBlock(byte[] buf, int bufOffset, 
@@ -248,9 +916,16 @@ public class BlockStoreMultiplexor {
         throw new ArrayIndexOutOfBoundsException();
       }
 
-      int masterBlockNum = getMasterBlockNum(storeNum, 0);
-      wrappedStore.writeBlock(masterBlockNum, buf, bufOffset, 
-        blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      // the superblock shares our master block with the tree's pointers,
+      // so this can't overlap anything that changes the tree
+      int masterBlockNum = getMyMasterBlockNum();
+      lock.writeLock().lock();
+      try {
+        wrappedStore.writeBlock(masterBlockNum, buf, bufOffset, 
+          blockOffset+wrappedStore.blockSize()-msbSize, nbytes);
+      }finally{
+        lock.writeLock().unlock();
+      }
     }
 
     public int blockSize() {
@@ -263,8 +938,13 @@ public class BlockStoreMultiplexor {
       if(blockOffset+nbytes > dbSize){
         throw new ArrayIndexOutOfBoundsException();
       }
-      int realBlockNum = getDataBlockNum(blockNum);
-      wrappedStore.readBlock(realBlockNum, buf, bufOffset, blockOffset, nbytes);
+      int realBlockNum = lockAndTranslate(blockNum);
+      try {
+        wrappedStore.readBlock(realBlockNum, buf, bufOffset, blockOffset, 
+          nbytes);
+      }finally{
+        lock.readLock().unlock();
+      }
     }
 
     public void writeBlock(int blockNum, byte[] buf, int bufOffset, 
@@ -273,9 +953,106 @@ public class BlockStoreMultiplexor {
       if(blockOffset+nbytes > dbSize){
         throw new ArrayIndexOutOfBoundsException();
       }
-      int realBlockNum = getDataBlockNum(blockNum);
-      wrappedStore.writeBlock(realBlockNum, buf, bufOffset, blockOffset, 
-        nbytes);
+      int realBlockNum = lockAndTranslate(blockNum);
+      try {
+        wrappedStore.writeBlock(realBlockNum, buf, bufOffset, blockOffset, 
+          nbytes);
+      }finally{
+        lock.readLock().unlock();
+      }
+    }
+
+    public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) 
+    throws DataIntegrityException {
+
+      if( (blockNum < 0) || (blockOffset+dst.remaining() > dbSize) ){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      int realBlockNum = lockAndTranslate(blockNum);
+      try {
+        wrappedStore.readBlock(realBlockNum, dst, blockOffset);
+      }finally{
+        lock.readLock().unlock();
+      }
+    }
+
+    public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) 
+    throws DataIntegrityException {
+
+      if( (blockNum < 0) || (blockOffset+src.remaining() > dbSize) ){
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      int realBlockNum = lockAndTranslate(blockNum);
+      try {
+        wrappedStore.writeBlock(realBlockNum, src, blockOffset);
+      }finally{
+        lock.readLock().unlock();
+      }
+    }
+
+    public void readBlocks(int[] blockNums, byte[] buf, int bufOffset) 
+    throws DataIntegrityException {
+      // In LayoutIndexed a data block is a whole wrapped block, so the run
+      // can be translated up front and handed down as one request.
+      if(layout != LayoutIndexed){
+        BlockStore.super.readBlocks(blockNums, buf, bufOffset);
+        return;
+      }
+      int[] realBlockNums = lockAndTranslate(blockNums);
+      try {
+        wrappedStore.readBlocks(realBlockNums, buf, bufOffset);
+      }finally{
+        lock.readLock().unlock();
+      }
+    }
+
+    public void writeBlocks(int[] blockNums, byte[] buf, int bufOffset) 
+    throws DataIntegrityException {
+      if(layout != LayoutIndexed){
+        BlockStore.super.writeBlocks(blockNums, buf, bufOffset);
+        return;
+      }
+      int[] realBlockNums = lockAndTranslate(blockNums);
+      try {
+        wrappedStore.writeBlocks(realBlockNums, buf, bufOffset);
+      }finally{
+        lock.readLock().unlock();
+      }
+    }
+
+    private int[] lockAndTranslate(int[] blockNums) 
+    throws DataIntegrityException {
+      // Like lockAndTranslate(int), for a whole run at once.
+      for(int bn : blockNums){
+        if(bn < 0){
+          throw new ArrayIndexOutOfBoundsException();
+        }
+      }
+      int[] ret = new int[blockNums.length];
+      lock.readLock().lock();
+      int i = 0;
+      for(; i<blockNums.length; ++i){
+        Integer cached = translations.get(blockNums[i]);
+        if(cached == null){
+          break;
+        }
+        ret[i] = cached;
+      }
+      if(i == blockNums.length){
+        return ret;
+      }
+      lock.readLock().unlock();
+
+      lock.writeLock().lock();
+      try {
+        for(i=0; i<blockNums.length; ++i){
+          ret[i] = getDataBlockNum(blockNums[i]);
+        }
+        lock.readLock().lock();
+        return ret;
+      }finally{
+        lock.writeLock().unlock();
+      }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,283 @@
+// This class is a BlockStore wrapper, in the style of ParityBlockStore, that
+// keeps recently used blocks (and the superblock) in memory.  Reads of a
+// cached block don't touch the wrapped store at all, and writes only update
+// the cached copy and mark it dirty.  Dirty blocks are written back to the
+// wrapped store when they are evicted, when flush() is called, and, if a
+// flush interval was given, periodically by a background thread.
+//
+// The cache holds at most <budgetBytes> bytes of block data.  Which block is
+// evicted when the cache is full is decided by an EvictionPolicy; LRU and
+// Clock are provided.
+//
+// Data that has been written but not yet flushed is lost if the process
+// dies, so callers that need durability at some point should call flush().
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+public class CachingBlockStore implements BlockStore {
+	public interface EvictionPolicy {
+		// Tells the policy about the blocks the cache holds, and asks it to
+		// pick a victim.  victim() is only called when the cache is nonempty.
+		void inserted(int blockNum);
+		void accessed(int blockNum);
+		void removed(int blockNum);
+		int victim();
+	}
+
+	public static class LRU implements EvictionPolicy {
+		private LinkedHashMap<Integer,Boolean> order =
+			new LinkedHashMap<Integer,Boolean>(16, 0.75f, true);
+
+		public void inserted(int blockNum) {    order.put(blockNum, true);    }
+		public void accessed(int blockNum) {    order.get(blockNum);    }
+		public void removed(int blockNum) {    order.remove(blockNum);    }
+		public int victim() {
+			return order.keySet().iterator().next();
+		}
+	}
+
+	public static class Clock implements EvictionPolicy {
+		// Blocks sit in a ring with a "referenced" bit each.  The hand sweeps
+		// the ring, clearing referenced bits, and stops at the first block
+		// whose bit is already clear.
+		private ArrayList<Integer>   ring = new ArrayList<Integer>();
+		private ArrayList<Boolean>   referenced = new ArrayList<Boolean>();
+		private HashMap<Integer,Integer> position =
+			new HashMap<Integer,Integer>();
+		private int hand = 0;
+
+		public void inserted(int blockNum) {
+			position.put(blockNum, ring.size());
+			ring.add(blockNum);
+			referenced.add(false);
+		}
+
+		public void accessed(int blockNum) {
+			referenced.set(position.get(blockNum), true);
+		}
+
+		public void removed(int blockNum) {
+			// move the last entry into the hole, to keep removal O(1)
+			int pos = position.remove(blockNum);
+			int last = ring.size()-1;
+			if(pos != last){
+				int moved = ring.get(last);
+				ring.set(pos, moved);
+				referenced.set(pos, referenced.get(last));
+				position.put(moved, pos);
+			}
+			ring.remove(last);
+			referenced.remove(last);
+			if(hand >= ring.size()){
+				hand = 0;
+			}
+		}
+
+		public int victim() {
+			while(referenced.get(hand)){
+				referenced.set(hand, false);
+				hand = (hand+1) % ring.size();
+			}
+			return ring.get(hand);
+		}
+	}
+
+	private BlockStore              wrappedStore;
+	private EvictionPolicy          policy;
+	private int                     capacity;     // in blocks
+	private HashMap<Integer,byte[]> cache = new HashMap<Integer,byte[]>();
+	private Set<Integer>            dirty = new HashSet<Integer>();
+	private byte[]                  superBlock = null;
+	private boolean                 superBlockDirty = false;
+	private ScheduledExecutorService flusher;
+
+	public CachingBlockStore(BlockStore bs, long budgetBytes) {
+		this(bs, budgetBytes, new LRU(), 0);
+	}
+
+	public CachingBlockStore(BlockStore bs, long budgetBytes,
+		EvictionPolicy policy, long flushIntervalMillis) {
+		// If <flushIntervalMillis> is positive, dirty data is written back
+		// at least that often.
+		wrappedStore = bs;
+		this.policy = policy;
+		capacity = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+			(budgetBytes - bs.superBlockSize()) / bs.blockSize()));
+
+		if(flushIntervalMillis > 0){
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "CachingBlockStore-flush");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(() -> {
+				try {
+					flush();
+				}catch(DataIntegrityException x){
+					x.printStackTrace();
+				}
+			}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public synchronized void format() throws DataIntegrityException {
+		// everything cached is about to be wiped anyway, so don't write it back
+		for(Integer blockNum : cache.keySet()){
+			policy.removed(blockNum);
+		}
+		cache.clear();
+		dirty.clear();
+		superBlock = null;
+		superBlockDirty = false;
+		wrappedStore.format();
+	}
+
+	public int blockSize() {
+		return wrappedStore.blockSize();
+	}
+
+	public int superBlockSize() {
+		return wrappedStore.superBlockSize();
+	}
+
+	public synchronized void flush() throws DataIntegrityException {
+		// Write all dirty data back to the wrapped store, in block order so
+		// that the device sees the writes as sequentially as possible.
+		Integer[] toWrite = dirty.toArray(new Integer[0]);
+		Arrays.sort(toWrite);
+		for(Integer blockNum : toWrite){
+			wrappedStore.writeBlock(blockNum, cache.get(blockNum), 0, 0,
+				blockSize());
+			dirty.remove(blockNum);
+		}
+		if(superBlockDirty){
+			wrappedStore.writeSuperBlock(superBlock, 0, 0, superBlockSize());
+			superBlockDirty = false;
+		}
+	}
+
+	public void close() throws DataIntegrityException {
+		if(flusher != null){
+			flusher.shutdown();
+		}
+		flush();
+	}
+
+	private void checkBounds(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes, int size) {
+
+		if( (blockNum<0) || (bufOffset<0) || (blockOffset<0) || (nbytes<0)
+			|| (bufOffset+nbytes > buf.length) || (blockOffset+nbytes > size) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void makeRoom() throws DataIntegrityException {
+		while(cache.size() >= capacity){
+			int victim = policy.victim();
+			if(dirty.contains(victim)){
+				// if the write fails the block stays cached and dirty
+				wrappedStore.writeBlock(victim, cache.get(victim), 0, 0,
+					blockSize());
+				dirty.remove(victim);
+			}
+			cache.remove(victim);
+			policy.removed(victim);
+		}
+	}
+
+	private byte[] getBlock(int blockNum, boolean load)
+	throws DataIntegrityException {
+		// Return the cached copy of a block, bringing it into the cache if
+		// necessary.  If <load> is false the caller is about to overwrite the
+		// whole block, so a missing block isn't read from the wrapped store.
+		byte[] data = cache.get(blockNum);
+		if(data != null){
+			policy.accessed(blockNum);
+			return data;
+		}
+		makeRoom();
+		data = new byte[blockSize()];
+		if(load){
+			wrappedStore.readBlock(blockNum, data, 0, 0, blockSize());
+		}
+		cache.put(blockNum, data);
+		policy.inserted(blockNum);
+		return data;
+	}
+
+	public synchronized void writeBlock(int blockNum, byte[] buf,
+		int bufOffset, int blockOffset, int nbytes)
+	throws DataIntegrityException {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, blockSize());
+		boolean wholeBlock = (blockOffset==0) && (nbytes==blockSize());
+		byte[] data = getBlock(blockNum, !wholeBlock);
+		System.arraycopy(buf, bufOffset, data, blockOffset, nbytes);
+		dirty.add(blockNum);
+	}
+
+	public synchronized void readBlock(int blockNum, byte[] buf,
+		int bufOffset, int blockOffset, int nbytes)
+	throws DataIntegrityException {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, blockSize());
+		byte[] data = getBlock(blockNum, true);
+		System.arraycopy(data, blockOffset, buf, bufOffset, nbytes);
+	}
+
+	public synchronized void readBlock(int blockNum, ByteBuffer dst, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = dst.remaining();
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > blockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		dst.put(getBlock(blockNum, true), blockOffset, nbytes);
+	}
+
+	public synchronized void writeBlock(int blockNum, ByteBuffer src, 
+		int blockOffset) throws DataIntegrityException {
+
+		int nbytes = src.remaining();
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > blockSize()) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		boolean wholeBlock = (blockOffset==0) && (nbytes==blockSize());
+		src.get(getBlock(blockNum, !wholeBlock), blockOffset, nbytes);
+		dirty.add(blockNum);
+	}
+
+	private byte[] getSuperBlock() throws DataIntegrityException {
+		if(superBlock == null){
+			superBlock = new byte[superBlockSize()];
+			wrappedStore.readSuperBlock(superBlock, 0, 0, superBlockSize());
+		}
+		return superBlock;
+	}
+
+	public synchronized void writeSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, superBlockSize());
+		System.arraycopy(buf, bufOffset, getSuperBlock(), blockOffset, nbytes);
+		superBlockDirty = true;
+	}
+
+	public synchronized void readSuperBlock(byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, superBlockSize());
+		System.arraycopy(getSuperBlock(), blockOffset, buf, bufOffset, nbytes);
+	}
+}
@@ -0,0 +1,84 @@
+// The ciphers that NegotiatedChannel and BlockStoreAuthEnc can use.
+//
+// LEGACY is the original construction (the PRF-driven stream cipher plus a
+// separate PRF tag), and is what you get unless both ends agree on
+// something else.  The others are AEAD ciphers from javax.crypto, which the
+// JVM runs with hardware support (AES-NI and friends) where it has it.
+// Every AEAD suite here takes a 32-byte key and a 12-byte nonce, and makes a
+// 16-byte tag.  A nonce must never be used twice with the same key.
+
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+public enum CipherSuite {
+	LEGACY(0, null, null),
+	AES_GCM(1, "AES/GCM/NoPadding", "AES"),
+	CHACHA20_POLY1305(2, "ChaCha20-Poly1305", "ChaCha20");
+
+	public static final int KeySizeBytes = 32;
+	public static final int NonceSizeBytes = 12;
+	public static final int TagSizeBytes = 16;
+
+	public final byte     id;
+	private final String  transformation;
+	private final String  keyAlgorithm;
+
+	CipherSuite(int id, String transformation, String keyAlgorithm) {
+		this.id = (byte) id;
+		this.transformation = transformation;
+		this.keyAlgorithm = keyAlgorithm;
+	}
+
+	public static CipherSuite fromId(byte id) {
+		// Returns null for an id we don't know.
+		for(CipherSuite s : values()){
+			if(s.id == id){
+				return s;
+			}
+		}
+		return null;
+	}
+
+	public boolean isAEAD() {
+		return transformation != null;
+	}
+
+	public boolean isAvailable() {
+		// Whether this JVM can run the suite.
+		if(! isAEAD()){
+			return true;
+		}
+		try {
+			Cipher.getInstance(transformation);
+			return true;
+		}catch(GeneralSecurityException x){
+			return false;
+		}
+	}
+
+	public Cipher newCipher() {
+		try {
+			return Cipher.getInstance(transformation);
+		}catch(GeneralSecurityException x){
+			throw new IllegalStateException(transformation + " not available", x);
+		}
+	}
+
+	public void init(Cipher cipher, int mode, byte[] key, byte[] nonce,
+		int nonceOffset) throws GeneralSecurityException {
+		// Set up <cipher> (from newCipher) for one message.
+		AlgorithmParameterSpec params;
+		if(this == AES_GCM){
+			params = new GCMParameterSpec(8*TagSizeBytes, nonce, nonceOffset,
+				NonceSizeBytes);
+		}else{
+			params = new IvParameterSpec(nonce, nonceOffset, NonceSizeBytes);
+		}
+		cipher.init(mode, new SecretKeySpec(key, keyAlgorithm), params);
+	}
+}
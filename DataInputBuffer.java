@@ -10,16 +10,24 @@
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.nio.ByteBuffer;
 
+import java.io.EOFException;
 import java.io.IOException;
 
 
 public class DataInputBuffer {
+	private byte[]               msg;
 	private ByteArrayInputStream bais;
 	private DataInputStream      dis;
 
 	public DataInputBuffer(SecureChannel chan) throws IOException {
-		byte[] msg = chan.receiveMessage();
+		this(chan.receiveMessage());
+	}
+
+	public DataInputBuffer(byte[] msg) {
+		// Parse a message that has already been received.
+		this.msg = msg;
 		bais = new ByteArrayInputStream(msg);
 		dis = new DataInputStream(bais);
 	}
@@ -41,12 +49,35 @@ public class DataInputBuffer {
 		return dis.readUTF();
 	}
 
+	public int available() {
+		// number of bytes of the message not yet consumed
+		return bais.available();
+	}
+
+	public ByteBuffer readByteBuffer(int len) throws IOException {
+		// Consume the next <len> bytes, returning them as a view of the
+		// received message rather than a copy.
+		int pos = msg.length - bais.available();
+		if(len < 0 || len > bais.available()){
+			throw new EOFException();
+		}
+		bais.skip(len);
+		return ByteBuffer.wrap(msg, pos, len).slice();
+	}
+
+	public void readFully(byte[] b, int off, int len) throws IOException {
+		// Consume the next <len> bytes into <b>; throws EOFException if the
+		// message doesn't have that many left.
+		dis.readFully(b, off, len);
+	}
+
 	public byte[] readByteArray() throws IOException {
 		int len = readInt();
-		byte[] ret = new byte[len];
-		for(int i=0; i<len; ++i){
-			ret[i] = readByte();
+		if(len < 0 || len > bais.available()){
+			throw new EOFException();
 		}
+		byte[] ret = new byte[len];
+		readFully(ret, 0, len);
 		return ret;
 	}
 }
\ No newline at end of file
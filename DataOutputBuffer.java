@@ -8,21 +8,38 @@
 // This method helps you build a message containing multiple data fields.
 // Messages built using this class will usually be consumed by an 
 // an instance of the DataInputBuffer class.
+//
+// If you know roughly how big the message will be, pass the size to the
+// constructor; if the guess is exact, send() hands the backing array to the
+// channel without copying it.
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.util.Arrays;
 
 import java.io.IOException;
 
 
 public class DataOutputBuffer {
 	private SecureChannel         outChan;
-	private ByteArrayOutputStream baos;
+	private MessageBuffer         baos;
 	private DataOutputStream      dos;
 
+	private static class MessageBuffer extends ByteArrayOutputStream {
+		MessageBuffer(int size) {    super(size);    }
+
+		byte[] message() {
+			return (count == buf.length) ? buf : Arrays.copyOf(buf, count);
+		}
+	}
+
 	public DataOutputBuffer(SecureChannel chan) {
+		this(chan, 32);
+	}
+
+	public DataOutputBuffer(SecureChannel chan, int expectedSize) {
 		outChan = chan;
-		baos = new ByteArrayOutputStream();
+		baos = new MessageBuffer(Math.max(expectedSize, 1));
 		dos = new DataOutputStream(baos);
 	}
 
@@ -46,16 +63,18 @@ public class DataOutputBuffer {
 		dos.writeUTF(s);
 	}
 
+	public void write(byte[] b, int off, int len) throws IOException {
+		// Append <len> raw bytes, with no length prefix.
+		dos.write(b, off, len);
+	}
+
 	public void writeByteArray(byte[] barr) throws IOException {
-		int len = barr.length;
-		writeInt(len);
-		for(int i=0; i<len; ++i){
-			writeByte(barr[i]);
-		}
+		writeInt(barr.length);
+		write(barr, 0, barr.length);
 	}
 
 	public void send() throws IOException {
-		byte[] msg = baos.toByteArray();
+		byte[] msg = baos.message();
 		outChan.sendMessage(msg);
 	}
 }
\ No newline at end of file
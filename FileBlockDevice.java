@@ -0,0 +1,292 @@
+// This class is a BlockStore that keeps the superblock and all of the
+// ordinary blocks in a single file, instead of one file per block the way
+// BlockDevice does.  The file is opened once, and every read or write is a
+// positional FileChannel access, so there is no open/close per block and
+// no per-block inode.
+//
+// Layout of the backing file:
+//   bytes 0 thru SuperBlockSize-1            superblock
+//   bytes SuperBlockSize thru BlockSize-1    unused (keeps blocks aligned)
+//   bytes (blockNum+1)*BlockSize thru ...    ordinary block <blockNum>
+//
+// The file is preallocated to hold <preallocBlocks> ordinary blocks, and
+// grows in chunks of that size when a write goes past the end.  Any part of
+// the file that has never been written reads as zeroes.  Partial reads and
+// writes only touch the requested byte range.
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class FileBlockDevice implements BlockStore {
+	public static final int BlockSize = 4096;
+	public static final int SuperBlockSize = 256;
+	public static final int DefaultPreallocBlocks = 1024;
+
+	private RandomAccessFile raf;
+	private FileChannel      channel;
+	private long             preallocBytes;
+	// the file is at least this long; it only changes under <lengthLock>
+	private volatile long    knownLength = 0;
+	private final Object     lengthLock = new Object();
+
+	public FileBlockDevice(String pathname) throws FileNotFoundException {
+		this(pathname, DefaultPreallocBlocks);
+	}
+
+	public FileBlockDevice(String pathname, int preallocBlocks)
+	throws FileNotFoundException {
+		// Open a block device, which will be backed by the single file at
+		// <pathname>.  If there is no file at that pathname, one will be
+		// created.
+		File f = new File(pathname);
+		if(f.isDirectory()){
+			throw new FileNotFoundException();
+		}
+		String parentName = f.getAbsoluteFile().getParent();
+		if(parentName != null){
+			new File(parentName).mkdirs();
+		}
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+		preallocBytes = ((long)Math.max(preallocBlocks, 1)) * BlockSize;
+		try {
+			ensureLength(BlockSize + preallocBytes);
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public void format() {
+		try{
+			// truncating and re-extending zeroes the superblock and leaves
+			// every ordinary block as a hole in the file
+			synchronized(lengthLock){
+				channel.truncate(0);
+				knownLength = 0;
+				ensureLength(BlockSize + preallocBytes);
+			}
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public int blockSize() {    return BlockSize;    }
+	public int superBlockSize() {    return SuperBlockSize;    }
+
+	public void close() throws IOException {
+		channel.close();
+		raf.close();
+	}
+
+	private long positionForBlock(int blockNum, int blockOffset) {
+		return ((long)blockNum + 1) * BlockSize + blockOffset;
+	}
+
+	private void ensureLength(long needed) throws IOException {
+		// Only ever grow the file, and only under <lengthLock>: two writers
+		// sizing it from lengths they each saw earlier could otherwise cut
+		// off what the other just wrote.
+		if(needed <= knownLength){
+			return;
+		}
+		synchronized(lengthLock){
+			long len = Math.max(knownLength, channel.size());
+			if(len < needed){
+				// grow in whole preallocation chunks, so that sequential
+				// allocation doesn't change the file size on every block
+				long chunks = (needed - len + preallocBytes - 1) / preallocBytes;
+				len += chunks*preallocBytes;
+				raf.setLength(len);
+			}
+			knownLength = len;
+		}
+	}
+
+	private void checkBounds(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes, int size) {
+
+		if( (blockNum<0) || (bufOffset<0) || (blockOffset<0) || (nbytes<0)
+			|| (bufOffset+nbytes > buf.length) || (blockOffset+nbytes > size) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private void writeAt(long position, byte[] buf, int bufOffset, int nbytes)
+	throws IOException {
+		writeAt(position, ByteBuffer.wrap(buf, bufOffset, nbytes));
+	}
+
+	private void writeAt(long position, ByteBuffer bb) throws IOException {
+		ensureLength(position + bb.remaining());
+		while(bb.hasRemaining()){
+			position += channel.write(bb, position);
+		}
+	}
+
+	private void readAt(long position, byte[] buf, int bufOffset, int nbytes)
+	throws IOException {
+		readAt(position, ByteBuffer.wrap(buf, bufOffset, nbytes));
+	}
+
+	private void readAt(long position, ByteBuffer bb) throws IOException {
+		while(bb.hasRemaining()){
+			int n = channel.read(bb, position);
+			if(n < 0){
+				// past the end of the file; never written, so it reads as zeroes
+				while(bb.hasRemaining()){
+					bb.put((byte)0);
+				}
+				return;
+			}
+			position += n;
+		}
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, BlockSize);
+		try {
+			writeAt(positionForBlock(blockNum, blockOffset), buf, bufOffset,
+				nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, BlockSize);
+		try {
+			readAt(positionForBlock(blockNum, blockOffset), buf, bufOffset,
+				nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) {
+		// read straight from the file into dst, heap or direct
+		int nbytes = dst.remaining();
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > BlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		try {
+			readAt(positionForBlock(blockNum, blockOffset), dst);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) {
+		int nbytes = src.remaining();
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > BlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		try {
+			writeAt(positionForBlock(blockNum, blockOffset), src);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlocks(int firstBlock, int count, ByteBuffer dst) {
+		ByteBuffer piece = dst.duplicate();
+		piece.limit(piece.position()+count*BlockSize);
+		if(firstBlock < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		try {
+			readAt(positionForBlock(firstBlock, 0), piece);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+		dst.position(piece.position());
+	}
+
+	public void writeBlocks(int firstBlock, int count, ByteBuffer src) {
+		ByteBuffer piece = src.duplicate();
+		piece.limit(piece.position()+count*BlockSize);
+		if(firstBlock < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		try {
+			writeAt(positionForBlock(firstBlock, 0), piece);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+		src.position(piece.position());
+	}
+
+	public void readBlocks(int[] blockNums, byte[] buf, int bufOffset) {
+		// each run of consecutive block numbers is one positional read
+		int i = 0;
+		while(i < blockNums.length){
+			int run = runLength(blockNums, i);
+			checkBounds(blockNums[i], buf, bufOffset+i*BlockSize, 0, 
+				run*BlockSize, run*BlockSize);
+			try {
+				readAt(positionForBlock(blockNums[i], 0), buf, 
+					bufOffset+i*BlockSize, run*BlockSize);
+			} catch(IOException x) {
+				x.printStackTrace();
+			}
+			i += run;
+		}
+	}
+
+	public void writeBlocks(int[] blockNums, byte[] buf, int bufOffset) {
+		// each run of consecutive block numbers is one positional write
+		int i = 0;
+		while(i < blockNums.length){
+			int run = runLength(blockNums, i);
+			checkBounds(blockNums[i], buf, bufOffset+i*BlockSize, 0, 
+				run*BlockSize, run*BlockSize);
+			try {
+				writeAt(positionForBlock(blockNums[i], 0), buf, 
+					bufOffset+i*BlockSize, run*BlockSize);
+			} catch(IOException x) {
+				x.printStackTrace();
+			}
+			i += run;
+		}
+	}
+
+	private static int runLength(int[] blockNums, int start) {
+		int n = 1;
+		while( (start+n < blockNums.length) 
+			&& (blockNums[start+n] == blockNums[start]+n) ){
+			++n;
+		}
+		return n;
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		try {
+			writeAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		try {
+			readAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,196 @@
+// This program compares the NetworkServer modes under many concurrent
+// clients.  For each mode it starts a server on a free local port, connects
+// <sessions> clients to it, and holds them all open at once.  Once every
+// client is connected, each one does <pings> ping round trips and hangs up.
+//
+// It reports, per mode, how long it took to get every client connected, the
+// ping throughput with all of them active, the number of live threads and
+// the heap in use (after a GC) while all sessions were open, and how many
+// clients failed.  The clients run in a separate JVM, started from the same
+// class path, so the thread and heap columns are the server's alone.  The
+// clients run on the same kind of executor in every mode (virtual threads
+// if the JVM has them), so differences come from the server.  Platform
+// threads are counted; virtual threads are not.
+//
+// If this JVM has no virtual threads, the virtual mode runs its sessions on
+// pooled platform threads instead (see NetworkServer); its row is then
+// marked with a *, and a note is printed.
+//
+// Invoke with:
+//     java LoadBenchmark pubKey privKey [sessions [pings [modes]]]
+// where <modes> is a comma-separated list drawn from threads, virtual and
+// nio.  The defaults are 10000 sessions, 10 pings, and all three modes.
+// Thousands of sessions need a correspondingly high open-file limit, since
+// each one uses a socket at both ends.
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.IOException;
+
+
+public class LoadBenchmark {
+	private static final String ClientArg = "--clients";
+
+	public static void main(String[] args) throws Exception {
+		if( (args.length > 0) && args[0].equals(ClientArg) ){
+			runClients(args);
+			return;
+		}
+		String publicKeyFileName = args[0];
+		String privateKeyFileName = args[1];
+		int sessions = (args.length > 2) ? Integer.parseInt(args[2]) : 10000;
+		int pings = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+		String[] modes = ((args.length > 4) ? args[4] : "threads,virtual,nio")
+			.split(",");
+
+		RSAKey privateKey = KeyHandler.readKeyFromFile(privateKeyFileName);
+		byte[] prgSeed = new byte[PRGen.KeySizeBytes];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i){
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+
+		System.out.println("mode      sessions  failed  connect(s)  pings/s"
+			+ "    threads  heapMB");
+		boolean fellBack = false;
+		for(String mode : modes){
+			runMode(mode, sessions, pings, publicKeyFileName, privateKey, prg);
+			fellBack |= mode.equals("virtual") &&
+				! NetworkServer.hasVirtualThreads();
+		}
+		if(fellBack){
+			System.out.println("* no virtual threads in this JVM; its "
+				+ "sessions ran on pooled platform threads");
+		}
+	}
+
+	private static void runMode(String mode, int sessions, int pings,
+		String publicKeyFileName, RSAKey privateKey, PRGen prg)
+	throws Exception {
+
+		NetworkServer ns = new NetworkServer(0, privateKey, prg,
+			"benchDev-"+mode);
+		Thread server = new Thread(() -> {
+			try {
+				if(mode.equals("nio")){
+					ns.serverLoopNio();
+				}else if(mode.equals("virtual")){
+					ns.serverLoopVirtual(sessions);
+				}else{
+					ns.serverLoop();
+				}
+			}catch(IOException x){
+				x.printStackTrace();
+			}
+		});
+		server.setDaemon(true);
+		server.start();
+
+		// the clients report on their stdout, and wait for a line on their
+		// stdin before they start pinging
+		String java = System.getProperty("java.home") + File.separator + "bin"
+			+ File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+			System.getProperty("java.class.path"), "LoadBenchmark", ClientArg,
+			publicKeyFileName, Integer.toString(ns.getPort()),
+			Integer.toString(sessions), Integer.toString(pings));
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process clients = pb.start();
+		BufferedReader fromClients = new BufferedReader(
+			new InputStreamReader(clients.getInputStream()));
+		PrintStream toClients = new PrintStream(clients.getOutputStream(), true);
+
+		String[] connected = fromClients.readLine().split(" ");
+		System.gc();
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long heapBytes = ManagementFactory.getMemoryMXBean()
+			.getHeapMemoryUsage().getUsed();
+
+		toClients.println("go");
+		String[] done = fromClients.readLine().split(" ");
+		clients.waitFor();
+		ns.shutdown(NetworkServer.DefaultDrainMillis);
+
+		long connectNanos = Long.parseLong(connected[0]);
+		long pingNanos = Long.parseLong(done[0]);
+		int failures = Integer.parseInt(done[1]);
+		boolean fellBack = mode.equals("virtual") &&
+			! NetworkServer.hasVirtualThreads();
+		System.out.println(String.format("%-9s %8d  %6d  %10.2f  %9.0f  %7d  %6d",
+			fellBack ? mode+"*" : mode, sessions, failures, connectNanos/1e9,
+			((double)sessions)*pings / (pingNanos/1e9), threads,
+			heapBytes >> 20));
+	}
+
+	private static void runClients(String[] args) throws Exception {
+		// The client side, in its own JVM.  Prints the connect time once
+		// every client is connected, waits for a line on stdin, then prints
+		// the ping time and the number of failed clients.
+		String publicKeyFileName = args[1];
+		int port = Integer.parseInt(args[2]);
+		int sessions = Integer.parseInt(args[3]);
+		int pings = Integer.parseInt(args[4]);
+
+		byte[] prgSeed = new byte[PRGen.KeySizeBytes];
+		byte[] randBytes = TrueRandomness.get();
+		for(int i=0; i<TrueRandomness.NumBytes; ++i){
+			prgSeed[i] = randBytes[i];
+		}
+		PRGen prg = new PRGen(prgSeed);
+
+		ExecutorService clients = NetworkServer.newSessionExecutor();
+		CountDownLatch connected = new CountDownLatch(sessions);
+		CountDownLatch go = new CountDownLatch(1);
+		AtomicInteger failures = new AtomicInteger(0);
+		byte[] pingBuf = new byte[64];
+
+		long start = System.nanoTime();
+		for(int i=0; i<sessions; ++i){
+			// PRGen isn't thread-safe, so each client gets its own
+			byte[] seed = new byte[PRGen.KeySizeBytes];
+			prg.nextBytes(seed);
+			clients.execute(() -> {
+				StorageClientSession session = null;
+				try {
+					session = new StorageClientSession("localhost", port,
+						publicKeyFileName, new PRGen(seed));
+				}catch(IOException x){
+					failures.incrementAndGet();
+					return;
+				}finally{
+					connected.countDown();
+				}
+				try {
+					go.await();
+					for(int j=0; j<pings; ++j){
+						session.testPing(pingBuf.length, 0, pingBuf);
+					}
+					session.close();
+				}catch(IOException | InterruptedException x){
+					failures.incrementAndGet();
+				}
+			});
+		}
+		connected.await();
+		System.out.println(System.nanoTime() - start);
+		System.out.flush();
+
+		new BufferedReader(new InputStreamReader(System.in)).readLine();
+		start = System.nanoTime();
+		go.countDown();
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.HOURS);
+		System.out.println((System.nanoTime() - start) + " " + failures.get());
+		System.out.flush();
+		System.exit(0);
+	}
+}
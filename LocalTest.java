@@ -3,6 +3,10 @@
 // augment this with more tests.  You don't need to submit it for grading, 
 // though.
 
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
@@ -42,6 +46,12 @@ public class LocalTest {
 		testPing(session);
 		testAuthentication(session);
 		testReadWrite(session, prg);
+		testPipelining(session, prg);
+		testStreaming(session, prg);
+		testBatch(session, prg);
+		testTwoSessions(session, harness.newClientSession(), prg);
+
+		testNegotiation(harness.newClientSession(), prg);
 
 		System.out.println("OK");
 	}
@@ -112,4 +122,186 @@ public class LocalTest {
 			x.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+
+	public static void testPipelining(StorageClientSession session, PRGen prg) {
+		// many writes in flight, some overlapping, then reads of the result;
+		// later requests must see the effect of earlier ones
+		int chunk = 1500;
+		int numChunks = 40;
+		byte[] expected = new byte[chunk*numChunks];
+		byte[] buf = new byte[chunk*numChunks];
+		byte[] patch = new byte[chunk];
+		byte[] got = new byte[buf.length];
+		byte[] early = new byte[chunk];
+		prg.nextBytes(buf);
+		prg.nextBytes(patch);
+		int base = 20000;
+
+		ArrayList<CompletableFuture<Void>> futures = 
+			new ArrayList<CompletableFuture<Void>>();
+		for(int i=0; i<numChunks; ++i){
+			futures.add(session.writeAsync(chunk, base+i*chunk, i*chunk, buf));
+		}
+		// this read must see chunk 3 as written above, not the patch below
+		futures.add(session.readAsync(chunk, base+3*chunk, 0, early));
+		futures.add(session.writeAsync(chunk, base+3*chunk+700, 0, patch));
+		for(int i=0; i<numChunks; ++i){
+			futures.add(session.readAsync(chunk, base+i*chunk, i*chunk, got));
+		}
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+
+		System.arraycopy(buf, 0, expected, 0, buf.length);
+		System.arraycopy(patch, 0, expected, 3*chunk+700, chunk);
+		for(int i=0; i<chunk; ++i){
+			assert early[i] == buf[3*chunk+i];
+		}
+		for(int i=0; i<expected.length; ++i){
+			assert got[i] == expected[i];
+		}
+
+		// a request with a bad size gets an error reply of its own, and
+		// doesn't hold up the session
+		CompletableFuture<Void> bad = session.readAsync(-1, base, 0, got);
+		try {
+			bad.join();
+			assert false;
+		}catch(CompletionException x){
+			// expected
+		}
+
+		// a blocking read after async requests sees all of them
+		try {
+			byte[] one = new byte[chunk];
+			session.read(chunk, base+3*chunk+700, 0, one);
+			for(int i=0; i<chunk; ++i){
+				assert one[i] == patch[i];
+			}
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public static void testStreaming(StorageClientSession session, PRGen prg) {
+		// big enough to be sent as several chunks, with a partial last one
+		int nbytes = 3*ServerContext.StreamChunkSize + 1234;
+		byte[] buf = new byte[nbytes+11];
+		byte[] buf2 = new byte[buf.length];
+		prg.nextBytes(buf);
+		try {
+			session.write(nbytes, 4321, 11, buf);
+			session.read(nbytes, 4321, 11, buf2);
+			for(int i=0; i<nbytes; ++i){
+				assert buf[i+11] == buf2[i+11];
+			}
+			// an ordinary small read of the middle sees the same data
+			byte[] small = new byte[100];
+			session.read(small.length, 4321+ServerContext.StreamChunkSize-50, 
+				0, small);
+			for(int i=0; i<small.length; ++i){
+				assert small[i] == buf[11+ServerContext.StreamChunkSize-50+i];
+			}
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public static void testBatch(StorageClientSession session, PRGen prg) {
+		// small records, out of order, some adjacent, some sharing a block,
+		// and one pair that overlaps (the later one must win)
+		int base = 3000000;
+		int[] offsets = { base+500, base+100, base+120, base+9000, base+140, 
+			base+8990 };
+		int[] lengths = { 30, 20, 20, 50, 7, 15 };
+		int[] bufOffsets = { 0, 30, 50, 70, 120, 127 };
+		byte[] buf = new byte[142];
+		prg.nextBytes(buf);
+		byte[] image = new byte[10000];
+		for(int i=0; i<offsets.length; ++i){
+			System.arraycopy(buf, bufOffsets[i], image, offsets[i]-base, lengths[i]);
+		}
+		try {
+			int[] status = session.writeBatch(offsets, lengths, bufOffsets, buf);
+			for(int s : status){
+				assert s == ServerContext.SuccessCode;
+			}
+			// the same ranges and a few more, read back in one batch
+			int[] rdOffsets = { base+9000, base+100, base+130, base+0, base+500,
+				base+8990 };
+			int[] rdLengths = { 50, 47, 10, 100, 30, 60 };
+			int[] rdBufOffsets = { 0, 50, 97, 107, 207, 237 };
+			byte[] got = new byte[297];
+			status = session.readBatch(rdOffsets, rdLengths, rdBufOffsets, got);
+			for(int i=0; i<rdOffsets.length; ++i){
+				assert status[i] == ServerContext.SuccessCode;
+				for(int j=0; j<rdLengths[i]; ++j){
+					assert got[rdBufOffsets[i]+j] == image[rdOffsets[i]-base+j];
+				}
+			}
+
+			// a batch over the server's limit is refused before it is sent,
+			// and the session stays usable
+			int half = ServerContext.MaxBatchBytes/2 + 1;
+			try {
+				session.readBatch(new int[] { 0, half }, new int[] { half, half },
+					new int[] { 0, half }, new byte[2*half]);
+				assert false;
+			}catch(IllegalArgumentException x){
+				// expected
+			}
+			testPing(session);
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public static void testTwoSessions(StorageClientSession session, 
+		StorageClientSession other, PRGen prg) {
+		// a second session for the same user writes just past where the
+		// first one is reading sequentially; the first must see the write
+		int chunk = 4096;
+		int base = 5000000;
+		byte[] buf = new byte[chunk];
+		byte[] patch = new byte[chunk];
+		prg.nextBytes(patch);
+		try {
+			other.authenticate("Alice", "apassword");
+			for(int i=0; i<8; ++i){
+				session.read(chunk, base+i*chunk, 0, buf);
+			}
+			other.write(chunk, base+8*chunk, 0, patch);
+			session.read(chunk, base+8*chunk, 0, buf);
+			for(int i=0; i<chunk; ++i){
+				assert buf[i] == patch[i];
+			}
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+
+	public static void testNegotiation(StorageClientSession session, PRGen prg) {
+		// switch a fresh session to an AEAD suite, then use it normally
+		try {
+			CipherSuite chosen = session.negotiateCipherSuite(
+				CipherSuite.CHACHA20_POLY1305, CipherSuite.AES_GCM);
+			assert (chosen != CipherSuite.LEGACY) 
+				|| ! CipherSuite.AES_GCM.isAvailable();
+			testPing(session);
+			session.createAccount("Dave", "dave's password");
+			session.authenticate("Dave", "dave's password");
+			testReadWrite(session, prg);
+			testStreaming(session, prg);
+		}catch(AccessDeniedException x){
+			x.printStackTrace();
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+	}
+}
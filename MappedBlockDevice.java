@@ -0,0 +1,314 @@
+// This class is a BlockStore that memory-maps its backing file, so that
+// reading or writing a block is just a copy between the caller's buffer and
+// the mapping, with no system call.  It uses the same single-file layout as
+// FileBlockDevice (superblock in the first block-sized region, ordinary
+// block <n> at (n+1)*BlockSize), so either class can open a file written by
+// the other.
+//
+// The file is mapped in segments of <segmentBytes> bytes (a multiple of
+// BlockSize, at most 1 GiB, since a MappedByteBuffer is int-indexed).
+// Nothing is mapped at open: a segment is mapped the first time a write
+// touches it, which also grows the file.  Reads from a segment that isn't
+// mapped go through the FileChannel, and yield zeroes past the end of the
+// file.
+//
+// format() truncates the file, and touching a mapping of the cut-off part
+// would fault, so every read and write holds the read side of <segLock>,
+// and format() (and close()) hold the write side while they drop the old
+// mappings.
+//
+// Durability is selected with a SyncMode:
+//   FORCE_EACH_WRITE  every write is forced to disk before it returns
+//   FORCE_ON_SYNC     data reaches disk when sync() (or close()) is called,
+//                     or whenever the OS decides to write it back
+//   PERIODIC          a background thread calls sync() every
+//                     <syncIntervalMillis> milliseconds
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class MappedBlockDevice implements BlockStore {
+	public static final int BlockSize = FileBlockDevice.BlockSize;
+	public static final int SuperBlockSize = FileBlockDevice.SuperBlockSize;
+	public static final int DefaultSegmentBytes = 1 << 30;
+	public static final long DefaultSyncIntervalMillis = 1000;
+
+	public enum SyncMode { FORCE_EACH_WRITE, FORCE_ON_SYNC, PERIODIC }
+
+	private RandomAccessFile   raf;
+	private FileChannel        channel;
+	private int                segmentBytes;
+	private SyncMode           syncMode;
+	// indexed by segment number; null where a segment isn't mapped yet
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private final ReentrantReadWriteLock segLock =
+		new ReentrantReadWriteLock();
+	private ScheduledExecutorService    syncer;
+
+	public MappedBlockDevice(String pathname) throws FileNotFoundException {
+		this(pathname, DefaultSegmentBytes, SyncMode.FORCE_ON_SYNC,
+			DefaultSyncIntervalMillis);
+	}
+
+	public MappedBlockDevice(String pathname, int segmentBytes,
+		SyncMode syncMode, long syncIntervalMillis)
+	throws FileNotFoundException {
+		// Open a block device backed by the file at <pathname>, creating the
+		// file if it doesn't exist.  <syncIntervalMillis> is only used in
+		// PERIODIC mode.
+		if( (segmentBytes < BlockSize) || (segmentBytes % BlockSize != 0) ){
+			throw new IllegalArgumentException("bad segment size");
+		}
+		File f = new File(pathname);
+		if(f.isDirectory()){
+			throw new FileNotFoundException();
+		}
+		String parentName = f.getAbsoluteFile().getParent();
+		if(parentName != null){
+			new File(parentName).mkdirs();
+		}
+		raf = new RandomAccessFile(f, "rw");
+		channel = raf.getChannel();
+		this.segmentBytes = segmentBytes;
+		this.syncMode = syncMode;
+
+		if(syncMode == SyncMode.PERIODIC){
+			syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "MappedBlockDevice-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			syncer.scheduleWithFixedDelay(this::sync, syncIntervalMillis,
+				syncIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void format() {
+		// drop the old mappings and cut the file back to nothing, so the
+		// superblock reads as zeroes and the ordinary blocks are holes
+		segLock.writeLock().lock();
+		try {
+			segments = new MappedByteBuffer[0];
+			channel.truncate(0);
+		}catch(IOException x){
+			x.printStackTrace();
+		}finally{
+			segLock.writeLock().unlock();
+		}
+	}
+
+	public int blockSize() {    return BlockSize;    }
+	public int superBlockSize() {    return SuperBlockSize;    }
+
+	public void sync() {
+		// Force every mapped segment to disk.
+		segLock.readLock().lock();
+		try {
+			for(MappedByteBuffer seg : segments){
+				if(seg != null){
+					seg.force();
+				}
+			}
+		}finally{
+			segLock.readLock().unlock();
+		}
+	}
+
+	public void close() throws IOException {
+		if(syncer != null){
+			syncer.shutdown();
+		}
+		sync();
+		segLock.writeLock().lock();
+		try {
+			segments = new MappedByteBuffer[0];
+			channel.close();
+			raf.close();
+		}finally{
+			segLock.writeLock().unlock();
+		}
+	}
+
+	private MappedByteBuffer mappedSegment(int segNum) {
+		// The mapping of segment <segNum>, or null if it isn't mapped.
+		MappedByteBuffer[] segs = segments;
+		return (segNum < segs.length) ? segs[segNum] : null;
+	}
+
+	private synchronized MappedByteBuffer mapSegment(int segNum)
+	throws IOException {
+		// Map segment <segNum>, if it isn't already, and return it.  The
+		// caller holds the read side of <segLock>.
+		MappedByteBuffer[] segs = segments;
+		if( (segNum < segs.length) && (segs[segNum] != null) ){
+			return segs[segNum];
+		}
+		MappedByteBuffer[] grown = Arrays.copyOf(segs,
+			Math.max(segs.length, segNum+1));
+		grown[segNum] = channel.map(FileChannel.MapMode.READ_WRITE,
+			((long)segNum)*segmentBytes, segmentBytes);
+		segments = grown;
+		return grown[segNum];
+	}
+
+	private void readUnmapped(long position, ByteBuffer dst) {
+		// Read through the channel, filling in zeroes past the end of the
+		// file.
+		try {
+			while(dst.hasRemaining()){
+				int n = channel.read(dst, position);
+				if(n < 0){
+					break;
+				}
+				position += n;
+			}
+		}catch(IOException x){
+			x.printStackTrace();
+		}
+		while(dst.hasRemaining()){
+			dst.put((byte)0);
+		}
+	}
+
+	private void checkBounds(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes, int size) {
+
+		if( (blockNum<0) || (bufOffset<0) || (blockOffset<0) || (nbytes<0)
+			|| (bufOffset+nbytes > buf.length) || (blockOffset+nbytes > size) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	private long positionForBlock(int blockNum, int blockOffset) {
+		return ((long)blockNum + 1) * BlockSize + blockOffset;
+	}
+
+	private void writeAt(long position, byte[] buf, int bufOffset, int nbytes)
+	throws IOException {
+		// A block never straddles two segments, because the segment size is
+		// a multiple of the block size.
+		int segNum = (int)(position / segmentBytes);
+		int segOffset = (int)(position % segmentBytes);
+		segLock.readLock().lock();
+		try {
+			MappedByteBuffer seg = mapSegment(segNum);
+			seg.put(segOffset, buf, bufOffset, nbytes);
+			if(syncMode == SyncMode.FORCE_EACH_WRITE){
+				seg.force(segOffset, nbytes);
+			}
+		}finally{
+			segLock.readLock().unlock();
+		}
+	}
+
+	private void readAt(long position, byte[] buf, int bufOffset, int nbytes) {
+		int segNum = (int)(position / segmentBytes);
+		int segOffset = (int)(position % segmentBytes);
+		segLock.readLock().lock();
+		try {
+			MappedByteBuffer seg = mappedSegment(segNum);
+			if(seg == null){
+				readUnmapped(position, ByteBuffer.wrap(buf, bufOffset, nbytes));
+				return;
+			}
+			seg.get(segOffset, buf, bufOffset, nbytes);
+		}finally{
+			segLock.readLock().unlock();
+		}
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, BlockSize);
+		try {
+			writeAt(positionForBlock(blockNum, blockOffset), buf, bufOffset,
+				nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes, BlockSize);
+		readAt(positionForBlock(blockNum, blockOffset), buf, bufOffset, nbytes);
+	}
+
+	public void readBlock(int blockNum, ByteBuffer dst, int blockOffset) {
+		// copy straight from the mapping into dst, heap or direct
+		int nbytes = dst.remaining();
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > BlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		long position = positionForBlock(blockNum, blockOffset);
+		int segNum = (int)(position / segmentBytes);
+		segLock.readLock().lock();
+		try {
+			MappedByteBuffer seg = mappedSegment(segNum);
+			if(seg == null){
+				readUnmapped(position, dst);
+				return;
+			}
+			dst.put(dst.position(), seg, (int)(position % segmentBytes),
+				nbytes);
+			dst.position(dst.position()+nbytes);
+		}finally{
+			segLock.readLock().unlock();
+		}
+	}
+
+	public void writeBlock(int blockNum, ByteBuffer src, int blockOffset) {
+		int nbytes = src.remaining();
+		if( (blockNum<0) || (blockOffset<0) || (blockOffset+nbytes > BlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		long position = positionForBlock(blockNum, blockOffset);
+		int segNum = (int)(position / segmentBytes);
+		int segOffset = (int)(position % segmentBytes);
+		segLock.readLock().lock();
+		try {
+			MappedByteBuffer seg = mapSegment(segNum);
+			seg.put(segOffset, src, src.position(), nbytes);
+			src.position(src.position()+nbytes);
+			if(syncMode == SyncMode.FORCE_EACH_WRITE){
+				seg.force(segOffset, nbytes);
+			}
+		} catch(IOException x) {
+			x.printStackTrace();
+		}finally{
+			segLock.readLock().unlock();
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		try {
+			writeAt(blockOffset, buf, bufOffset, nbytes);
+		} catch(IOException x) {
+			x.printStackTrace();
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) {
+
+		checkBounds(0, buf, bufOffset, blockOffset, nbytes, SuperBlockSize);
+		readAt(blockOffset, buf, bufOffset, nbytes);
+	}
+}
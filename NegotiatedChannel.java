@@ -0,0 +1,104 @@
+// A SecureChannel that can move to an AEAD CipherSuite once it is set up.
+//
+// The key exchange is SecureChannel's, unchanged, and messages are
+// protected the SecureChannel way until useCipherSuite is called.  The
+// switch itself is agreed on with CommandNegotiate (see ServerContext),
+// which travels over the SecureChannel protection: the client offers
+// suites and sends a fresh random secret, and the server picks one.  Both
+// ends then derive one key per direction from the secret, and from then on
+// every message is AEAD-sealed under a nonce built from a per-direction
+// message counter, so dropped, replayed or reordered messages are caught.
+// The framing on the wire (4-byte length, then the message) is the same.
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.crypto.Cipher;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+
+public class NegotiatedChannel extends SecureChannel {
+	private InsecureChannel framing;
+	private boolean         isServer;
+	private CipherSuite     suite = CipherSuite.LEGACY;
+	private Cipher          outCipher;
+	private Cipher          inCipher;
+	private byte[]          outKey;
+	private byte[]          inKey;
+	private long            outSequenceNum = 0;
+	private long            inSequenceNum = 0;
+
+	public NegotiatedChannel(InputStream inStr, OutputStream outStr, PRGen rand,
+		boolean iAmServer, RSAKey serverKey) throws IOException {
+
+		super(inStr, outStr, rand, iAmServer, serverKey);
+		// InsecureChannel doesn't buffer, so a second one on the same
+		// streams picks up exactly where the first leaves off
+		framing = new InsecureChannel(inStr, outStr);
+		isServer = iAmServer;
+	}
+
+	public CipherSuite getCipherSuite() {
+		return suite;
+	}
+
+	public void useCipherSuite(CipherSuite newSuite, byte[] secret) {
+		// Protect all later messages with <newSuite>, keyed from <secret>
+		// (PRF.KeySizeBytes long, and known only to the two ends).  Both ends
+		// must switch at the same point in the message stream.
+		if(! newSuite.isAEAD()){
+			return;
+		}
+		PRF kdf = new PRF(secret);
+		byte[] clientKey = kdf.eval(new byte[] { 'c' });
+		byte[] serverKey = kdf.eval(new byte[] { 's' });
+		outKey = isServer ? serverKey : clientKey;
+		inKey = isServer ? clientKey : serverKey;
+		outCipher = newSuite.newCipher();
+		inCipher = newSuite.newCipher();
+		suite = newSuite;
+	}
+
+	private static byte[] nonce(long sequenceNum) {
+		byte[] nonce = new byte[CipherSuite.NonceSizeBytes];
+		LongUtils.longToBytes(sequenceNum, nonce, CipherSuite.NonceSizeBytes-8);
+		return nonce;
+	}
+
+	private boolean sealing() {
+		// SecureChannel's constructor sends and receives through these
+		// methods before our fields are set up, so check for that too
+		return (suite != null) && suite.isAEAD();
+	}
+
+	public void sendMessage(byte[] msg) throws IOException {
+		if(! sealing()){
+			super.sendMessage(msg);
+			return;
+		}
+		byte[] sealed;
+		try {
+			suite.init(outCipher, Cipher.ENCRYPT_MODE, outKey,
+				nonce(outSequenceNum++), 0);
+			sealed = outCipher.doFinal(msg);
+		}catch(GeneralSecurityException x){
+			throw new IOException(x);
+		}
+		framing.sendMessage(sealed);
+	}
+
+	public byte[] receiveMessage() throws IOException {
+		if(! sealing()){
+			return super.receiveMessage();
+		}
+		byte[] sealed = framing.receiveMessage();
+		try {
+			suite.init(inCipher, Cipher.DECRYPT_MODE, inKey,
+				nonce(inSequenceNum++), 0);
+			return inCipher.doFinal(sealed);
+		}catch(GeneralSecurityException x){
+			throw new IOException("message failed authentication", x);
+		}
+	}
+}
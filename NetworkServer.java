@@ -8,34 +8,253 @@
 // never returns.  Instead, it sits in an infinite loop waiting for clients
 // to connect to it, and starting a new ServerThread for every client that
 // connects.
+// serverLoopNio is an alternative to serverLoop that serves every client
+// from a small, fixed set of threads (see NioNetworkServer); the main uses
+// it when its optional fourth argument is "nio".
+// serverLoopVirtual runs each client's ServerThread code on a virtual
+// thread, where the JVM supports them (Java 21 and later), and on a pooled
+// platform thread otherwise (see hasVirtualThreads), which is then no
+// lighter than serverLoop.  It serves at most <maxSessions> clients at
+// once; further clients wait in the listen queue until a session ends.  The
+// main uses it when its fourth argument is "virtual", with an optional fifth
+// argument giving the session cap.
+// Any of the loops returns once shutdown is called.  shutdown stops
+// accepting new clients, then gives the running sessions (of serverLoop or
+// serverLoopVirtual) a grace period to finish before cutting them off.
+// The block store directory name may be a comma-separated list, such as
+// one directory per disk; the blocks are then striped across all of them
+// (see StripedBlockStore).  The same list, in the same order, must be
+// given every time.
+// Blocks at rest are kept in the original format unless the server is
+// given an AEAD storage CipherSuite (see ServerContext); the main takes its
+// name, such as AES_GCM, as an optional sixth argument.  The same suite
+// must be given every time.
 //
 
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
 
 
 public class NetworkServer {
+	public static final int  DefaultMaxSessions = 10000;
+	public static final long DefaultDrainMillis = 10000;
+	public static final int  ListenBacklog = 1024;
+
 	private ServerContext context;
+	private ServerSocketChannel serverChannel;
 	private ServerSocket  serverSock;
+	private volatile boolean running = true;
+	private volatile NioNetworkServer nioServer;
+	private volatile ExecutorService  sessions;
+	private Set<Socket>   openSockets = ConcurrentHashMap.newKeySet();
+	private Set<Thread>   sessionThreads = ConcurrentHashMap.newKeySet();
 
 	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
 		String blockStoreDirectoryName) 
 	throws DataIntegrityException, IOException, FileNotFoundException {
-		BlockDevice bd = new BlockDevice(blockStoreDirectoryName);
-		ServerSocket ssock = new ServerSocket(portNum);
-		context = new ServerContext(bd, privateKey, prg);
-		serverSock = new ServerSocket(portNum);
+		this(portNum, privateKey, prg, blockStoreDirectoryName,
+			CipherSuite.LEGACY);
+	}
+
+	public NetworkServer(int portNum, RSAKey privateKey, PRGen prg, 
+		String blockStoreDirectoryName, CipherSuite storageSuite) 
+	throws DataIntegrityException, IOException, FileNotFoundException {
+		String[] dirNames = blockStoreDirectoryName.split(",");
+		BlockStore store;
+		if(dirNames.length == 1){
+			store = new BlockDevice(blockStoreDirectoryName);
+		}else{
+			BlockDevice[] members = new BlockDevice[dirNames.length];
+			for(int i=0; i<dirNames.length; ++i){
+				members[i] = new BlockDevice(dirNames[i]);
+			}
+			store = new StripedBlockStore(members);
+		}
+		context = new ServerContext(store, privateKey, prg, storageSuite);
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(portNum), ListenBacklog);
+		serverSock = serverChannel.socket();
+	}
+
+	public int getPort() {
+		// the port actually bound, useful if the constructor was given 0
+		return serverSock.getLocalPort();
 	}
 
 	public void serverLoop() throws IOException {
-		while(true) {
-			Socket sock = serverSock.accept();
-			ServerThread st = new ServerThread(context, 
-				sock.getInputStream(), sock.getOutputStream());
-			st.start();
+		while(running) {
+			Socket sock = accept();
+			if(sock == null){
+				return;
+			}
+			openSockets.add(sock);
+			try {
+				ServerThread st = new ServerThread(context, 
+					sock.getInputStream(), sock.getOutputStream());
+				Thread t = new Thread(() -> {
+					try {
+						st.run();
+					}finally{
+						endSession(sock);
+						sessionThreads.remove(Thread.currentThread());
+					}
+				}, "NetworkServer-session");
+				sessionThreads.add(t);
+				t.start();
+			}catch(IOException x){
+				// the client went away as it connected
+				endSession(sock);
+			}
+		}
+	}
+
+	public void serverLoopNio() throws IOException {
+		nioServer = new NioNetworkServer(context, serverChannel);
+		if(! running){
+			return;
+		}
+		nioServer.serverLoop();
+	}
+
+	public void serverLoopVirtual(int maxSessions) throws IOException {
+		ExecutorService exec = newSessionExecutor();
+		sessions = exec;
+		Semaphore slots = new Semaphore(maxSessions);
+		while(running) {
+			try {
+				// wait for a free slot before accepting, so that clients
+				// beyond the cap queue up in the kernel instead of here
+				slots.acquire();
+			}catch(InterruptedException x){
+				return;
+			}
+			Socket sock = accept();
+			if(sock == null){
+				slots.release();
+				return;
+			}
+			openSockets.add(sock);
+			boolean started = false;
+			try {
+				ServerThread st = new ServerThread(context, 
+					sock.getInputStream(), sock.getOutputStream());
+				exec.execute(() -> {
+					try {
+						st.run();
+					}finally{
+						endSession(sock);
+						slots.release();
+					}
+				});
+				started = true;
+			}catch(IOException x){
+				// the client went away as it connected
+			}catch(RejectedExecutionException x){
+				// shutdown is under way
+				return;
+			}finally{
+				if(! started){
+					endSession(sock);
+					slots.release();
+				}
+			}
+		}
+	}
+
+	private Socket accept() throws IOException {
+		// Returns null if the server has been shut down.
+		try {
+			return serverSock.accept();
+		}catch(IOException x){
+			if(! running){
+				return null;
+			}
+			throw x;
+		}
+	}
+
+	private void endSession(Socket sock) {
+		openSockets.remove(sock);
+		try {
+			sock.close();
+		}catch(IOException x){
+			// nothing more to do
+		}
+	}
+
+	public void shutdown(long drainMillis) throws IOException {
+		// Stop accepting clients, let current sessions run for up to
+		// <drainMillis> milliseconds, then end the ones still going.
+		// Sessions are ended by shutting down their input, so a command
+		// already received still gets its reply.
+		running = false;
+		serverChannel.close();
+		NioNetworkServer nio = nioServer;
+		if(nio != null){
+			nio.shutdown();
+		}
+		long deadline = System.currentTimeMillis() + drainMillis;
+		try {
+			ExecutorService exec = sessions;
+			if(exec != null){
+				exec.shutdown();
+				exec.awaitTermination(drainMillis, TimeUnit.MILLISECONDS);
+			}
+			for(Thread t : sessionThreads){
+				long left = deadline - System.currentTimeMillis();
+				if(left <= 0){
+					break;
+				}
+				t.join(left);
+			}
+		}catch(InterruptedException x){
+			Thread.currentThread().interrupt();
+		}
+		for(Socket sock : openSockets){
+			try {
+				sock.shutdownInput();
+			}catch(IOException x){
+				// already closed
+			}
+		}
+	}
+
+	public static boolean hasVirtualThreads() {
+		// Whether newSessionExecutor gives virtual threads in this JVM.
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}catch(NoSuchMethodException x){
+			return false;
+		}
+	}
+
+	static ExecutorService newSessionExecutor() {
+		// One virtual thread per task if this JVM has them; otherwise a
+		// cached pool of daemon platform threads.  Looked up reflectively
+		// so the code still builds and runs on older JDKs.
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		}catch(ReflectiveOperationException | UnsupportedOperationException x){
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "NetworkServer-session");
+				t.setDaemon(true);
+				return t;
+			});
 		}
 	}
 
@@ -47,6 +266,15 @@ public class NetworkServer {
 		if(args.length > 2) {
 			privateKeyFileName = args[2];
 		}
+		String mode = (args.length > 3) ? args[3] : "threads";
+		int maxSessions = DefaultMaxSessions;
+		if(args.length > 4) {
+			maxSessions = Integer.parseInt(args[4]);
+		}
+		CipherSuite storageSuite = CipherSuite.LEGACY;
+		if(args.length > 5) {
+			storageSuite = CipherSuite.valueOf(args[5]);
+		}
 
 		RSAKey privKey = KeyHandler.readKeyFromFile(privateKeyFileName);
 
@@ -58,7 +286,13 @@ public class NetworkServer {
 		PRGen prg = new PRGen(prgSeed);
 
 		NetworkServer ns = new NetworkServer(port, privKey, prg, 
-			blockDeviceDirectoryName);
-		ns.serverLoop();
+			blockDeviceDirectoryName, storageSuite);
+		if(mode.equals("nio")){
+			ns.serverLoopNio();
+		}else if(mode.equals("virtual")){
+			ns.serverLoopVirtual(maxSessions);
+		}else{
+			ns.serverLoop();
+		}
 	}
 }
\ No newline at end of file
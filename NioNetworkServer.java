@@ -0,0 +1,638 @@
+// This class runs the server with a small, fixed number of threads, instead
+// of one thread per client the way NetworkServer.serverLoop does.  Idle
+// clients then cost a socket and a small buffer, but no thread.
+//
+// A few event-loop threads each own a Selector, and do non-blocking reads
+// and writes on their share of the client sockets.  Incoming bytes are
+// buffered per client, and split into frames using the same framing that
+// SecureChannel uses (a 4-byte length, then the message).  When a client
+// has at least one complete frame buffered, its session is handed to a
+// bounded pool of worker threads, which runs the ordinary ServerThread
+// code (the same SecureChannel and ServerContext command set) on it.
+// Replies are queued and written by the event loop whenever the socket can
+// take them.
+//
+// Workers never wait on a client.  A session is only handed to a worker
+// when it can make progress without one: when a whole message is buffered
+// for it, or a paused streamed read can go on.  A streamed write takes in
+// one chunk per message (see ServerThread).  The key exchange needs care:
+// SecureChannel does both of its halves in one blocking call, and the
+// server speaks first.  So the server's opening message is worked out
+// ahead of time, from a fresh seed, and sent; once the client's answer is
+// buffered, the real key exchange is run from the same seed, which
+// produces the same opening message, and that copy is dropped instead of
+// being sent twice.  The price is computing the server's half of the key
+// exchange twice.
+//
+// Replies are queued without waiting.  While a client has more than
+// MaxQueuedReplyBytes of them unread, its session isn't given any more
+// work, so a streamed read pauses.  A client that has replies queued and
+// reads none of them for StallTimeoutMillis is dropped.  Likewise, once a client has
+// MaxBufferedBytes buffered and at least one whole message among them, we
+// stop reading from it until its worker has caught up.
+//
+// Each client has at most one worker task at a time, so its commands are
+// still executed in the order they were sent.  A task does one command, or
+// sends one chunk of a streamed read, and then goes back in the queue, so
+// one busy client can't keep the others waiting for long.
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+
+public class NioNetworkServer {
+	public static final int  DefaultEventLoops =
+		Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	public static final int  DefaultWorkers =
+		2 * Runtime.getRuntime().availableProcessors();
+	public static final int  DefaultMaxQueuedTasks = 4096;
+	public static final long StallTimeoutMillis = 30000;
+	public static final int  MaxFrameBytes = 256 << 20;
+	public static final int  MaxQueuedReplyBytes = 4 << 20;
+	public static final int  MaxBufferedBytes = 4 << 20;
+
+	private static final int  ReadBufferBytes = 64 << 10;
+	private static final long RetryMillis = 10;
+	private static final long SweepMillis = 1000;
+
+	private ServerContext       context;
+	private ServerSocketChannel serverChannel;
+	private EventLoop[]         loops;
+	private ThreadPoolExecutor  workers;
+	private volatile boolean    running = true;
+
+	public NioNetworkServer(ServerContext ctxt, ServerSocketChannel ssc)
+	throws IOException {
+		this(ctxt, ssc, DefaultEventLoops, DefaultWorkers,
+			DefaultMaxQueuedTasks);
+	}
+
+	public NioNetworkServer(ServerContext ctxt, ServerSocketChannel ssc,
+		int numLoops, int numWorkers, int maxQueuedTasks) throws IOException {
+		// <ssc> must already be bound.  <maxQueuedTasks> bounds the number of
+		// sessions waiting for a worker; past that, ready sessions wait in
+		// their event loop until the queue drains.
+		context = ctxt;
+		serverChannel = ssc;
+		workers = new ThreadPoolExecutor(numWorkers, numWorkers, 0,
+			TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(maxQueuedTasks), r -> {
+				Thread t = new Thread(r, "NioNetworkServer-worker");
+				t.setDaemon(true);
+				return t;
+			});
+		loops = new EventLoop[numLoops];
+		for(int i=0; i<numLoops; ++i){
+			loops[i] = new EventLoop();
+		}
+	}
+
+	public void serverLoop() throws IOException {
+		// Accept clients until shutdown is called, spreading them over the
+		// event loops.
+		for(int i=0; i<loops.length; ++i){
+			Thread t = new Thread(loops[i], "NioNetworkServer-loop-"+i);
+			t.setDaemon(true);
+			t.start();
+		}
+		serverChannel.configureBlocking(true);
+		int next = 0;
+		while(running){
+			SocketChannel sc;
+			try {
+				sc = serverChannel.accept();
+			}catch(ClosedChannelException x){
+				if(! running){
+					return;
+				}
+				throw x;
+			}
+			sc.configureBlocking(false);
+			sc.socket().setTcpNoDelay(true);
+			loops[next].register(new Connection(sc, loops[next]));
+			next = (next+1) % loops.length;
+		}
+	}
+
+	public void shutdown() throws IOException {
+		// Stop accepting clients, and stop serving the ones we have.
+		running = false;
+		serverChannel.close();
+		for(EventLoop loop : loops){
+			loop.selector.wakeup();
+		}
+		workers.shutdown();
+	}
+
+	private void dispatch(Connection conn) {
+		// Give <conn> to a worker, if it has work and doesn't have one already.
+		if(! conn.needsWork() || ! conn.busy.compareAndSet(false, true)){
+			return;
+		}
+		try {
+			workers.execute(conn::work);
+		}catch(RejectedExecutionException x){
+			conn.busy.set(false);
+			if(running){
+				conn.loop.retry.add(conn);
+				conn.loop.selector.wakeup();
+			}
+		}
+	}
+
+	private class EventLoop implements Runnable {
+		private Selector   selector;
+		private ByteBuffer readBuf = ByteBuffer.allocateDirect(ReadBufferBytes);
+		private ConcurrentLinkedQueue<Runnable>   tasks =
+			new ConcurrentLinkedQueue<Runnable>();
+		private ConcurrentLinkedQueue<Connection> retry =
+			new ConcurrentLinkedQueue<Connection>();
+		private long       lastSweep = System.currentTimeMillis();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		void register(Connection conn) {
+			tasks.add(() -> {
+				try {
+					conn.key = conn.sc.register(selector, SelectionKey.OP_READ, conn);
+				}catch(ClosedChannelException x){
+					return;
+				}
+				// the server speaks first in the key exchange
+				dispatch(conn);
+			});
+			selector.wakeup();
+		}
+
+		void requestWrite(Connection conn) {
+			tasks.add(() -> {
+				SelectionKey key = conn.key;
+				if(key != null && key.isValid()){
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			});
+			selector.wakeup();
+		}
+
+		void updateReads(Connection conn) {
+			// Read from <conn> unless it has as much buffered as we allow.
+			tasks.add(() -> {
+				SelectionKey key = conn.key;
+				if(key == null || ! key.isValid() || conn.in.eof){
+					return;
+				}
+				if(conn.in.full()){
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}else{
+					key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+			});
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while(running){
+					selector.select(retry.isEmpty() ? SweepMillis : RetryMillis);
+					Runnable task;
+					while((task = tasks.poll()) != null){
+						task.run();
+					}
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()){
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if(key.isValid() && key.isReadable()){
+								doRead(conn);
+							}
+							if(key.isValid() && key.isWritable()){
+								doWrite(conn);
+							}
+						}catch(IOException x){
+							conn.close();
+						}
+					}
+					int n = retry.size();
+					for(int i=0; i<n; ++i){
+						dispatch(retry.poll());
+					}
+					sweep();
+				}
+				for(SelectionKey key : selector.keys()){
+					((Connection) key.attachment()).close();
+				}
+				selector.close();
+			}catch(IOException x){
+				x.printStackTrace();
+			}
+		}
+
+		private void sweep() {
+			// Drop clients that have taken none of their queued replies for
+			// StallTimeoutMillis.
+			long now = System.currentTimeMillis();
+			if(now - lastSweep < SweepMillis){
+				return;
+			}
+			lastSweep = now;
+			for(SelectionKey key : selector.keys()){
+				Connection conn = (Connection) key.attachment();
+				long since = conn.stalledSince;
+				if( (since != 0) && (now - since > StallTimeoutMillis) ){
+					conn.close();
+				}
+			}
+		}
+
+		private void doRead(Connection conn) throws IOException {
+			readBuf.clear();
+			int n = conn.sc.read(readBuf);
+			if(n < 0){
+				conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+				conn.in.endOfStream();
+			}else{
+				readBuf.flip();
+				if(! conn.in.append(readBuf)){
+					// oversized or malformed frame
+					conn.close();
+					return;
+				}
+				if(conn.in.full()){
+					// the worker turns reads back on once it catches up
+					conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_READ);
+				}
+			}
+			dispatch(conn);
+		}
+
+		private void doWrite(Connection conn) throws IOException {
+			if(conn.writePending()){
+				conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+			// the client may have caught up enough for its session to go on
+			dispatch(conn);
+		}
+	}
+
+	private class Connection {
+		private SocketChannel     sc;
+		private EventLoop         loop;
+		private volatile SelectionKey key;
+		private FrameInputStream  in = new FrameInputStream();
+		private QueuedOutputStream out = new QueuedOutputStream(this);
+		private ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+		private long              queuedBytes = 0;   // guarded by outQueue
+		// when the socket last took queued replies, or 0 if none are queued
+		private volatile long     stalledSince = 0;
+		private ServerThread      session;
+		private volatile SecureChannel secure;
+		// seed and opening message of the key exchange, once it is sent
+		private byte[]            exchangeSeed;
+		private volatile byte[]   opening;
+		private volatile boolean  closed = false;
+		private AtomicBoolean     busy = new AtomicBoolean(false);
+
+		Connection(SocketChannel sc, EventLoop loop) throws IOException {
+			this.sc = sc;
+			this.loop = loop;
+			session = new ServerThread(context, in, out);
+		}
+
+		boolean backlogged() {
+			synchronized(outQueue){
+				return queuedBytes > MaxQueuedReplyBytes;
+			}
+		}
+
+		boolean needsWork() {
+			if(closed || backlogged()){
+				return false;
+			}
+			if(secure == null){
+				// send the opening, or finish once the client has answered
+				return (opening == null) || in.hasCompleteFrame() || in.atEnd();
+			}
+			return session.isStreaming() || in.hasCompleteFrame() || in.atEnd();
+		}
+
+		void work() {
+			try {
+				if(secure == null){
+					exchangeKeys();
+				}
+				// one chunk or one command per turn, so a busy client
+				// goes to the back of the queue behind the others
+				if(secure != null){
+					if(session.isStreaming()){
+						session.continueStream(secure);
+					}else if(in.hasCompleteFrame()){
+						session.serveCommand(secure);
+					}
+				}
+				if(in.atEnd()){
+					close();
+				}
+			}catch(EOFException x){
+				close();
+			}catch(IOException x){
+				x.printStackTrace();
+				close();
+			}catch(RuntimeException x){
+				x.printStackTrace();
+				close();
+			}finally{
+				busy.set(false);
+			}
+			// we may have made room to read more
+			loop.updateReads(this);
+			// pick up frames that arrived after the last check
+			dispatch(this);
+		}
+
+		private void exchangeKeys() throws IOException {
+			// First call: send the opening message of the key exchange.
+			// Later, once the client's answer is buffered: run the real key
+			// exchange from the same seed, dropping its copy of the opening.
+			if(opening == null){
+				exchangeSeed = new byte[PRGen.KeySizeBytes];
+				context.prg.nextBytes(exchangeSeed);
+				byte[] msg = new KeyExchange(new PRGen(exchangeSeed), true)
+					.prepareOutMessage();
+				ByteArrayOutputStream framed = new ByteArrayOutputStream();
+				new InsecureChannel(null, framed).sendMessage(msg);
+				opening = framed.toByteArray();
+				send(opening);
+			}else if(in.hasCompleteFrame()){
+				out.skip(opening);
+				secure = new NegotiatedChannel(in, out, 
+					new PRGen(exchangeSeed), true, context.privateKey);
+				exchangeSeed = null;
+				opening = null;
+			}
+		}
+
+		void send(byte[] bytes) throws IOException {
+			// Queue <bytes> for the client, writing as much as the socket will
+			// take right away.  Never waits: a client that falls behind is
+			// held off by needsWork, and dropped by the sweep if it stays
+			// stuck.
+			ByteBuffer bb = ByteBuffer.wrap(bytes);
+			synchronized(outQueue){
+				if(closed){
+					throw new EOFException();
+				}
+				if(outQueue.isEmpty()){
+					sc.write(bb);
+					if(! bb.hasRemaining()){
+						return;
+					}
+				}
+				outQueue.add(bb);
+				queuedBytes += bb.remaining();
+				if(stalledSince == 0){
+					stalledSince = System.currentTimeMillis();
+				}
+			}
+			loop.requestWrite(this);
+		}
+
+		boolean writePending() throws IOException {
+			// Write queued bytes; return true if the queue is now empty.
+			synchronized(outQueue){
+				long before = queuedBytes;
+				try {
+					while(! outQueue.isEmpty()){
+						ByteBuffer bb = outQueue.peek();
+						queuedBytes -= sc.write(bb);
+						if(bb.hasRemaining()){
+							return false;
+						}
+						outQueue.poll();
+					}
+					return true;
+				}finally{
+					if(queuedBytes == 0){
+						stalledSince = 0;
+					}else if(queuedBytes < before){
+						stalledSince = System.currentTimeMillis();
+					}
+				}
+			}
+		}
+
+		void close() {
+			synchronized(outQueue){
+				if(closed){
+					return;
+				}
+				closed = true;
+			}
+			session.endSession();
+			in.endOfStream();
+			try {
+				if(key != null){
+					key.cancel();
+				}
+				sc.close();
+			}catch(IOException x){
+				// nothing more to do
+			}
+		}
+	}
+
+	private static class QueuedOutputStream extends OutputStream {
+		// SecureChannel writes a message a byte at a time and then flushes;
+		// collect the bytes and hand them over as one buffer on flush.
+		private Connection            conn;
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+		private byte[]                skipping;   // see skip
+		private int                   skipped = 0;
+
+		QueuedOutputStream(Connection conn) {
+			this.conn = conn;
+		}
+
+		void skip(byte[] sent) {
+			// Drop the next <sent>.length bytes written, which must match
+			// <sent>: the client already has them.
+			skipping = sent;
+			skipped = 0;
+		}
+
+		public void write(int b) throws IOException {
+			if(skipping != null){
+				if(skipping[skipped++] != (byte) b){
+					throw new IOException("key exchange didn't replay");
+				}
+				if(skipped == skipping.length){
+					skipping = null;
+				}
+				return;
+			}
+			pending.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			while( (len > 0) && (skipping != null) ){
+				write(b[off++] & 0xff);
+				--len;
+			}
+			pending.write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			if(pending.size() > 0){
+				byte[] bytes = pending.toByteArray();
+				pending.reset();
+				conn.send(bytes);
+			}
+		}
+	}
+
+	private class FrameInputStream extends InputStream {
+		// Bytes received from one client, not yet consumed by its session.
+		// Tracks where frames end, so we know when a whole frame is here.
+		// Workers only read whole frames, so a read never has to wait.
+		private byte[]  buf = new byte[512];
+		private int     head = 0;     // next byte to consume
+		private int     tail = 0;     // end of received bytes
+		private long    consumed = 0; // total bytes consumed so far
+		private long    received = 0; // total bytes received so far
+		private ArrayDeque<Long> frameEnds = new ArrayDeque<Long>();
+		private int     headerBytes = 0;
+		private int     frameLen = 0;
+		private long    frameRemaining = -1;  // -1 while reading a header
+		private volatile boolean eof = false;
+
+		synchronized boolean append(ByteBuffer src) {
+			// Returns false if the client sent a frame we won't accept.
+			int n = src.remaining();
+			if(tail+n > buf.length){
+				if(tail-head+n <= buf.length){
+					System.arraycopy(buf, head, buf, 0, tail-head);
+				}else{
+					byte[] grown = new byte[Math.max(2*buf.length, tail-head+n)];
+					System.arraycopy(buf, head, grown, 0, tail-head);
+					buf = grown;
+				}
+				tail -= head;
+				head = 0;
+			}
+			int start = tail;
+			src.get(buf, tail, n);
+			tail += n;
+
+			int i = start;
+			while(i < tail){
+				if(frameRemaining < 0){
+					frameLen = (frameLen << 8) | (buf[i++] & 0xff);
+					if(++headerBytes == 4){
+						if(frameLen < 0 || frameLen > MaxFrameBytes){
+							return false;
+						}
+						frameRemaining = frameLen;
+						headerBytes = 0;
+						frameLen = 0;
+					}
+				}else{
+					int take = (int) Math.min(frameRemaining, tail-i);
+					i += take;
+					frameRemaining -= take;
+				}
+				if(frameRemaining == 0){
+					frameEnds.add(received + (i-start));
+					frameRemaining = -1;
+				}
+			}
+			received += n;
+			return true;
+		}
+
+		synchronized void endOfStream() {
+			eof = true;
+		}
+
+		synchronized boolean hasCompleteFrame() {
+			while(! frameEnds.isEmpty() && frameEnds.peek() <= consumed){
+				frameEnds.poll();
+			}
+			return ! frameEnds.isEmpty();
+		}
+
+		synchronized boolean full() {
+			// Enough is buffered, and the worker has something to do with
+			// it, so stop reading.  Without a whole frame we have to read on,
+			// or the frame would never finish (frames are still bounded by
+			// MaxFrameBytes).
+			return (tail-head >= MaxBufferedBytes) && hasCompleteFrame();
+		}
+
+		synchronized boolean atEnd() {
+			return eof && (head == tail);
+		}
+
+		private void checkData() throws IOException {
+			// Workers only read frames that are already here.
+			if(head == tail){
+				throw new EOFException();
+			}
+		}
+
+		private void consumed(int n) {
+			head += n;
+			consumed += n;
+			if(head == tail){
+				head = tail = 0;
+				if(buf.length > ReadBufferBytes){
+					// don't let one big message pin memory on an idle client
+					buf = new byte[512];
+				}
+			}
+		}
+
+		public synchronized int read() throws IOException {
+			checkData();
+			int b = buf[head] & 0xff;
+			consumed(1);
+			return b;
+		}
+
+		public synchronized int read(byte[] b, int off, int len)
+		throws IOException {
+			if(len == 0){
+				return 0;
+			}
+			checkData();
+			int n = Math.min(len, tail-head);
+			System.arraycopy(buf, head, b, off, n);
+			consumed(n);
+			return n;
+		}
+
+		public synchronized int available() {
+			return tail-head;
+		}
+	}
+}
@@ -0,0 +1,409 @@
+// A BlockStore that spreads its blocks, plus Reed-Solomon parity, over
+// k+m member BlockStores, so that the data survives the loss of any m of
+// them while costing only m/k extra space (mirroring would cost k).  In the
+// spirit of ParityBlockStore, but with parity that can repair as well as
+// detect.
+//
+// The blocks are grouped into rows of k: block b is data block b%k of row
+// b/k.  Each row also has m parity blocks, and every member holds one block
+// of every row, at the row's number.  Which member holds which of a row's
+// blocks rotates from row to row, so parity updates don't all land on the
+// same members.
+//
+// Parity is computed in GF(2^8) with log/exp and multiplication tables.
+// Parity block j of a row is the sum, over the row's data blocks i, of
+// C[j][i] times data block i, where C is a Cauchy matrix; any k of a
+// row's k+m blocks are then enough to solve for the others.
+//
+// A member is taken to have lost a block when reading it throws a
+// DataIntegrityException, so the members should be stores that detect
+// corruption (ParityBlockStore, a keyed BlockStoreAuthEnc, ...).  A lost
+// block is rebuilt from k others in its row, handed back to the reader,
+// and written back to its member.
+//
+// A write only touches the bytes it changes: it reads the old bytes of the
+// data block, writes the new ones, and adds C[j][i] times the difference
+// into the same bytes of each parity block, so a small write costs m+1 small
+// reads and writes instead of a pass over the whole row.  Writes in the
+// same row are serialized by a striped lock.  As with RAID-5, a crash
+// between the data write and the parity writes leaves that row's parity
+// stale until the block is written again.
+//
+// The superblock is mirrored on every member, with a record of the
+// geometry at the end that is checked when the store is opened, as in
+// StripedBlockStore.
+
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class ReedSolomonBlockStore implements BlockStore {
+	private static final int GeometryBytes = 24;
+	private static final int NumRowLocks = 64;
+
+	// GF(2^8) with the primitive polynomial x^8+x^4+x^3+x^2+1
+	private static final int[]    Exp = new int[512];
+	private static final int[]    Log = new int[256];
+	private static final byte[][] Mul = new byte[256][256];
+
+	static {
+		int x = 1;
+		for(int i=0; i<255; ++i){
+			Exp[i] = x;
+			Log[x] = i;
+			x <<= 1;
+			if(x >= 256){
+				x ^= 0x11d;
+			}
+		}
+		for(int i=255; i<512; ++i){
+			Exp[i] = Exp[i-255];
+		}
+		for(int a=1; a<256; ++a){
+			for(int b=1; b<256; ++b){
+				Mul[a][b] = (byte) Exp[Log[a]+Log[b]];
+			}
+		}
+	}
+
+	private static int mul(int a, int b) {
+		return Mul[a][b] & 0xff;
+	}
+
+	private static int inverse(int a) {
+		return Exp[255-Log[a]];
+	}
+
+	private static void mulAdd(int c, byte[] src, int srcOffset, byte[] dst,
+		int dstOffset, int nbytes) {
+		// dst += c*src, byte by byte
+		byte[] row = Mul[c];
+		for(int i=0; i<nbytes; ++i){
+			dst[dstOffset+i] ^= row[src[srcOffset+i] & 0xff];
+		}
+	}
+
+	private BlockStore[]    members;
+	private int             k, m, n;
+	private int[][]         parityMatrix;    // m x k Cauchy matrix
+	private int             blockSize;
+	private int             superBlockSize;
+	private ReentrantLock[] rowLocks = new ReentrantLock[NumRowLocks];
+
+	public ReedSolomonBlockStore(BlockStore[] members, int dataMembers)
+	throws DataIntegrityException {
+		// The first <dataMembers> members' worth of each row is data, and
+		// the rest of the members' worth is parity.
+		n = members.length;
+		k = dataMembers;
+		m = n-k;
+		if(k < 1 || m < 0 || n > 256){
+			throw new IllegalArgumentException();
+		}
+		for(BlockStore bs : members){
+			if(bs.blockSize() != members[0].blockSize()
+				|| bs.superBlockSize() != members[0].superBlockSize()){
+				throw new IllegalArgumentException(
+					"members must all have the same geometry");
+			}
+		}
+		this.members = members.clone();
+		blockSize = members[0].blockSize();
+		superBlockSize = members[0].superBlockSize() - GeometryBytes;
+
+		// C[j][i] = 1/(x_j + y_i), with x_j = k+j and y_i = i all distinct
+		parityMatrix = new int[m][k];
+		for(int j=0; j<m; ++j){
+			for(int i=0; i<k; ++i){
+				parityMatrix[j][i] = inverse((k+j) ^ i);
+			}
+		}
+		for(int i=0; i<NumRowLocks; ++i){
+			rowLocks[i] = new ReentrantLock();
+		}
+		checkGeometry();
+	}
+
+	private void checkGeometry() throws DataIntegrityException {
+		boolean allNew = true;
+		byte[][] found = new byte[n][GeometryBytes];
+		for(int i=0; i<n; ++i){
+			members[i].readSuperBlock(found[i], 0, superBlockSize,
+				GeometryBytes);
+			for(byte b : found[i]){
+				allNew = allNew && (b == 0);
+			}
+		}
+		if(allNew){
+			writeGeometry();
+			return;
+		}
+		for(int i=0; i<n; ++i){
+			if(LongUtils.bytesToLong(found[i], 0) != k
+				|| LongUtils.bytesToLong(found[i], 8) != m
+				|| LongUtils.bytesToLong(found[i], 16) != i){
+				throw new DataIntegrityException();
+			}
+		}
+	}
+
+	private void writeGeometry() throws DataIntegrityException {
+		byte[] geometry = new byte[GeometryBytes];
+		LongUtils.longToBytes((long)k, geometry, 0);
+		LongUtils.longToBytes((long)m, geometry, 8);
+		for(int i=0; i<n; ++i){
+			LongUtils.longToBytes((long)i, geometry, 16);
+			members[i].writeSuperBlock(geometry, 0, superBlockSize,
+				GeometryBytes);
+		}
+	}
+
+	public void format() throws DataIntegrityException {
+		// all-zero data has all-zero parity, so formatted members agree
+		for(BlockStore bs : members){
+			bs.format();
+		}
+		writeGeometry();
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public int superBlockSize() {
+		return superBlockSize;
+	}
+
+	private BlockStore memberFor(int row, int slot) {
+		// slots 0..k-1 are the row's data blocks, k..n-1 its parity blocks
+		return members[(slot + row) % n];
+	}
+
+	private ReentrantLock rowLock(int row) {
+		return rowLocks[row % NumRowLocks];
+	}
+
+	private void checkBounds(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) {
+
+		if( (blockNum<0) || (bufOffset<0) || (blockOffset<0) || (nbytes<0)
+			|| (bufOffset+nbytes > buf.length)
+			|| (blockOffset+nbytes > blockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes);
+		int row = blockNum / k;
+		int slot = blockNum % k;
+		try {
+			memberFor(row, slot).readBlock(row, buf, bufOffset, blockOffset,
+				nbytes);
+			return;
+		}catch(DataIntegrityException x){
+			// rebuild it below
+		}
+		rowLock(row).lock();
+		try {
+			byte[] block = rebuild(row, slot);
+			System.arraycopy(block, blockOffset, buf, bufOffset, nbytes);
+		}finally{
+			rowLock(row).unlock();
+		}
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		checkBounds(blockNum, buf, bufOffset, blockOffset, nbytes);
+		int row = blockNum / k;
+		int slot = blockNum % k;
+		rowLock(row).lock();
+		try {
+			// delta = old ^ new, over just the bytes being written
+			byte[] delta = new byte[nbytes];
+			try {
+				memberFor(row, slot).readBlock(row, delta, 0, blockOffset,
+					nbytes);
+			}catch(DataIntegrityException x){
+				System.arraycopy(rebuild(row, slot), blockOffset, delta, 0,
+					nbytes);
+			}
+			for(int i=0; i<nbytes; ++i){
+				delta[i] ^= buf[bufOffset+i];
+			}
+			memberFor(row, slot).writeBlock(row, buf, bufOffset, blockOffset,
+				nbytes);
+
+			byte[] parity = new byte[nbytes];
+			boolean[] lost = new boolean[m];
+			for(int j=0; j<m; ++j){
+				BlockStore pm = memberFor(row, k+j);
+				try {
+					pm.readBlock(row, parity, 0, blockOffset, nbytes);
+				}catch(DataIntegrityException x){
+					lost[j] = true;
+					continue;
+				}
+				mulAdd(parityMatrix[j][slot], delta, 0, parity, 0, nbytes);
+				pm.writeBlock(row, parity, 0, blockOffset, nbytes);
+			}
+			// with the rest of the row up to date, a lost parity block can
+			// be worked out from scratch
+			for(int j=0; j<m; ++j){
+				if(lost[j]){
+					rebuild(row, k+j);
+				}
+			}
+		}finally{
+			rowLock(row).unlock();
+		}
+	}
+
+	private byte[] rebuild(int row, int lostSlot) throws DataIntegrityException {
+		// Work out block <lostSlot> of <row> from k other blocks of the row,
+		// write it back to its member, and return it.  Callers hold the
+		// row's lock.
+		int[] slots = new int[k];
+		byte[][] blocks = new byte[k][];
+		int found = 0;
+		for(int s=0; s<n && found<k; ++s){
+			if(s == lostSlot){
+				continue;
+			}
+			byte[] b = new byte[blockSize];
+			try {
+				memberFor(row, s).readBlock(row, b, 0, 0, blockSize);
+			}catch(DataIntegrityException x){
+				continue;
+			}
+			slots[found] = s;
+			blocks[found] = b;
+			++found;
+		}
+		if(found < k){
+			// more than m blocks of this row are gone
+			throw new DataIntegrityException();
+		}
+
+		// Each block we have is a known combination (a row of the
+		// generator matrix [I; C]) of the k data blocks.  Invert those k
+		// rows to get the data blocks back from the ones we have.
+		int[][] a = new int[k][k];
+		for(int r=0; r<k; ++r){
+			a[r] = generatorRow(slots[r]);
+		}
+		int[][] inv = invert(a);
+
+		// the lost block is generatorRow(lostSlot) * data
+		//   = generatorRow(lostSlot) * inv * (the blocks we have)
+		int[] target = generatorRow(lostSlot);
+		byte[] ret = new byte[blockSize];
+		for(int r=0; r<k; ++r){
+			int coeff = 0;
+			for(int i=0; i<k; ++i){
+				if(target[i] != 0 && inv[i][r] != 0){
+					coeff ^= mul(target[i], inv[i][r]);
+				}
+			}
+			if(coeff != 0){
+				mulAdd(coeff, blocks[r], 0, ret, 0, blockSize);
+			}
+		}
+
+		try {
+			memberFor(row, lostSlot).writeBlock(row, ret, 0, 0, blockSize);
+		}catch(DataIntegrityException x){
+			// couldn't repair it this time; the data is still good
+		}
+		return ret;
+	}
+
+	private int[] generatorRow(int slot) {
+		if(slot >= k){
+			return parityMatrix[slot-k].clone();
+		}
+		int[] ret = new int[k];
+		ret[slot] = 1;
+		return ret;
+	}
+
+	private static int[][] invert(int[][] a) throws DataIntegrityException {
+		// Gauss-Jordan elimination over GF(2^8).
+		int size = a.length;
+		int[][] work = new int[size][];
+		int[][] inv = new int[size][size];
+		for(int i=0; i<size; ++i){
+			work[i] = a[i].clone();
+			inv[i][i] = 1;
+		}
+		for(int col=0; col<size; ++col){
+			int pivot = col;
+			while(pivot < size && work[pivot][col] == 0){
+				++pivot;
+			}
+			if(pivot == size){
+				// can't happen with a Cauchy matrix
+				throw new DataIntegrityException();
+			}
+			int[] t = work[pivot]; work[pivot] = work[col]; work[col] = t;
+			t = inv[pivot]; inv[pivot] = inv[col]; inv[col] = t;
+
+			int scale = inverse(work[col][col]);
+			for(int j=0; j<size; ++j){
+				work[col][j] = (work[col][j] == 0) ? 0 : mul(work[col][j], scale);
+				inv[col][j] = (inv[col][j] == 0) ? 0 : mul(inv[col][j], scale);
+			}
+			for(int r=0; r<size; ++r){
+				int f = work[r][col];
+				if(r == col || f == 0){
+					continue;
+				}
+				for(int j=0; j<size; ++j){
+					if(work[col][j] != 0){
+						work[r][j] ^= mul(f, work[col][j]);
+					}
+					if(inv[col][j] != 0){
+						inv[r][j] ^= mul(f, inv[col][j]);
+					}
+				}
+			}
+		}
+		return inv;
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (nbytes<0)
+			|| (blockOffset+nbytes > superBlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		for(BlockStore bs : members){
+			bs.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (nbytes<0)
+			|| (blockOffset+nbytes > superBlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		DataIntegrityException failure = null;
+		for(BlockStore bs : members){
+			try {
+				bs.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+				return;
+			}catch(DataIntegrityException x){
+				if(failure == null){
+					failure = x;
+				}
+			}
+		}
+		throw failure;
+	}
+}
@@ -6,27 +6,117 @@
 // one client that it is devoted to.
 //
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
 public class ServerContext {
 	public static final int SuccessCode = 0;
 	public static final int UnauthorizedCode = 1;
 	public static final int DataIntegrityFailureCode = 2;
+	public static final int BadRequestCode = 3;
 
 	public static final byte CommandPing = 0;
 	public static final byte CommandAuthenticate = 1;
 	public static final byte CommandCreateAccount = 2;
 	public static final byte CommandWrite = 3;
 	public static final byte CommandRead = 4;
+	public static final byte CommandTaggedWrite = 5;
+	public static final byte CommandTaggedRead = 6;
+
+	// Tagged commands are the pipelined forms of CommandWrite and
+	// CommandRead.  Each starts with an int request ID, chosen by the client,
+	// followed by the same fields as the untagged command.  The reply starts
+	// with the same request ID, then has the same fields as the untagged
+	// reply.  A client may have up to MaxPipelinedRequests of them being
+	// executed at once (more are accepted, but wait); they are run on
+	// requestExecutor, and replies can come back in any order.  Each moves
+	// at most MaxTaggedBytes; one that is bigger, or has a negative size or
+	// offset, gets BadRequestCode.
+	public static final int MaxPipelinedRequests = 64;
+	public static final int MaxTaggedBytes = 1 << 20;
+
+	// Streamed commands move a large write or read as a series of messages
+	// of at most StreamChunkSize bytes each, so neither side has to hold the
+	// whole transfer in memory.  CommandStreamWrite has the same fields as
+	// CommandWrite minus the data; the data follows as raw chunk messages,
+	// and the server replies with one status code at the end.  For
+	// CommandStreamRead the server replies with chunk messages, each a
+	// status code followed (on success) by the chunk's data; the first
+	// failure ends the stream.
+	public static final byte CommandStreamWrite = 7;
+	public static final byte CommandStreamRead = 8;
+	public static final int  StreamChunkSize = 256 * 1024;
+
+	// Batch commands carry a list of ranges.  CommandBatchWrite is an int
+	// count, then for each range its storage offset, length, and data;
+	// the reply is one status code per range.  CommandBatchRead is a count
+	// and (offset, length) pairs; the reply is, per range, a status code
+	// followed (on success) by the data.  Replies follow the order of the
+	// request.  Overlapping writes take effect in list order.  A batch may
+	// have at most MaxBatchRanges ranges, of at most MaxBatchBytes in all,
+	// since the server holds all of its data at once; a bigger one is
+	// malformed, and the server drops the connection.
+	public static final byte CommandBatchWrite = 9;
+	public static final byte CommandBatchRead = 10;
+	public static final int  MaxBatchRanges = 4096;
+	public static final int  MaxBatchBytes = 16 << 20;
+
+	// CommandNegotiate moves the channel to an AEAD CipherSuite (see
+	// NegotiatedChannel).  The client sends a byte array holding a random
+	// PRF.KeySizeBytes secret, then a byte array of CipherSuite ids in order
+	// of preference.  The server replies with the id of the suite it picked
+	// (the first offered one it accepts, or LEGACY), and both ends switch
+	// right after the reply.
+	public static final byte CommandNegotiate = 11;
 
 	public PRGen 		  prg;
 	public ServerAuth auth;
 	public RSAKey     privateKey;
 	public BlockStoreMultiplexor mux;
+	public ExecutorService requestExecutor;
+	// Each session's ArrayStore splits a big read or write into as many as
+	// IOParallelism runs, and hands the extra ones to ioExecutor.  This is
+	// separate from requestExecutor, whose threads wait on these runs.
+	public static final int IOParallelism = 8;
+	public ExecutorService ioExecutor;
+	// A session's ArrayStore doesn't read ahead or coalesce writes (see
+	// ArrayStore).  All of a user's sessions share one substore, so data a
+	// session read ahead could be stale by the time it is used, and a write
+	// is acknowledged to the client, so it has to be on the device and
+	// visible to the user's other sessions by then.
+	public CipherSuite[] acceptedSuites = 
+		{ CipherSuite.AES_GCM, CipherSuite.CHACHA20_POLY1305 };
+	// By default blocks at rest are stored the way they always have been
+	// (see BlockStoreAuthEnc), so existing devices still open.  A server
+	// can opt in to sealing them with an AEAD storageSuite instead, under a
+	// key derived from the server's private key, so the device is no more
+	// readable than the key file.  The same suite and key must be given
+	// every time a device is opened.
+	public CipherSuite storageSuite;
 
-	public ServerContext(BlockDevice device, RSAKey privateKey, PRGen prg) 
+	public ServerContext(BlockStore device, RSAKey privateKey, PRGen prg) 
 	throws DataIntegrityException {
-		this.prg = prg;
+		this(device, privateKey, prg, CipherSuite.LEGACY);
+	}
+
+	public ServerContext(BlockStore device, RSAKey privateKey, PRGen prg,
+		CipherSuite storageSuite)
+	throws DataIntegrityException {
+		// every session draws from this at once, so give each thread its
+		// own stream rather than having them all queue up on one PRGen
+		byte[] seed = new byte[PRGen.KeySizeBytes];
+		prg.nextBytes(seed);
+		this.prg = new StripedPRGen(seed);
 		this.privateKey = privateKey;
-		BlockStoreAuthEnc bsae = new BlockStoreAuthEnc(device, prg);
+		this.storageSuite = storageSuite;
+		BlockStoreAuthEnc bsae;
+		if(storageSuite.isAEAD()){
+			bsae = new BlockStoreAuthEnc(device, this.prg,
+				storageKey(privateKey), storageSuite);
+		}else{
+			bsae = new BlockStoreAuthEnc(device, this.prg);
+		}
 		mux = new BlockStoreMultiplexor(bsae);
 
 		BlockStore bs0;
@@ -36,5 +126,47 @@ public class ServerContext {
 			bs0 = mux.getSubStore(0);
 		}
 		auth = new ServerAuth(bs0, mux);
+
+		requestExecutor = Executors.newFixedThreadPool(
+			4 * Runtime.getRuntime().availableProcessors(), r -> {
+				Thread t = new Thread(r, "ServerContext-request");
+				t.setDaemon(true);
+				return t;
+			});
+		ioExecutor = Executors.newFixedThreadPool(
+			4 * Runtime.getRuntime().availableProcessors(), r -> {
+				Thread t = new Thread(r, "ServerContext-io");
+				t.setDaemon(true);
+				return t;
+			});
+	}
+
+	private static byte[] storageKey(RSAKey privateKey) {
+		// Condense the private key into a PRF key, then derive the storage
+		// key from that, so that it is independent of any other use.
+		PRF extract = new PRF(new byte[PRF.KeySizeBytes]);
+		extract.update(privateKey.getModulus().toByteArray());
+		PRF kdf = new PRF(extract.eval(privateKey.getExponent().toByteArray()));
+		return kdf.eval(new byte[] { 's', 't', 'o', 'r', 'e' });
+	}
+
+	public ArrayStore newArrayStore(BlockStore bs) {
+		return new ArrayStore(bs, ioExecutor, IOParallelism);
+	}
+
+	public CipherSuite chooseCipherSuite(byte[] offeredIds) {
+		// The first suite the client offered that we accept and can run.
+		for(byte id : offeredIds){
+			CipherSuite s = CipherSuite.fromId(id);
+			if(s == null || ! s.isAvailable()){
+				continue;
+			}
+			for(CipherSuite ok : acceptedSuites){
+				if(ok == s){
+					return s;
+				}
+			}
+		}
+		return CipherSuite.LEGACY;
 	}
 }
\ No newline at end of file
@@ -1,15 +1,36 @@
 // This class implements the server-side code to receive and execute 
 // commands sent by a single client. There will be one ServerThread for each
 // currently active client. 
-// The bulk of the action here is in the big while loop in the run method,
-// which receives a command, calls the correct server-side code to execute
-// the command, then sends back a response to the client.
+// The bulk of the action here is in serveCommand, which receives a command,
+// calls the correct server-side code to execute the command, then sends
+// back a response to the client.  The run method just sets up the secure
+// channel and calls serveCommand in a loop.  Servers that don't dedicate a
+// thread to each client (see NioNetworkServer) use a ServerThread that is
+// never started, and call openChannel and serveCommand themselves.  Each
+// call to serveCommand then reads exactly one message: a streamed write
+// takes in one chunk per call (see receiveChunk), and a streamed read
+// sends one chunk per call to continueStream, so the caller decides when
+// the rest goes out.
+// Tagged (pipelined) reads and writes are handed off to the context's
+// requestExecutor, so serveCommand can go on to the next command before
+// they finish; see serveTagged.  Their replies are queued on the session
+// and sent by one thread at a time, so a client that is slow to read them
+// holds up at most one requestExecutor thread; see sendReplies.
+// Batch commands are run range by range in offset order, with neighbouring
+// ranges merged into single accesses; see serveBatch.
 //
 // DO NOT MODIFY CODE IN THIS FILE.
 //
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -20,6 +41,19 @@ public class ServerThread extends Thread {
 	private InputStream   inStream;
 	private OutputStream  outStream;
 	private ArrayStore    arrayStore;
+	private Semaphore     inFlight = 
+		new Semaphore(ServerContext.MaxPipelinedRequests, true);
+	private ConcurrentLinkedQueue<QueuedReply> replies =
+		new ConcurrentLinkedQueue<QueuedReply>();
+	private AtomicBoolean sendingReplies = new AtomicBoolean(false);
+
+	// a streamed write being taken in, one chunk per serveCommand
+	private boolean       streamingIn = false;
+	private int           inBytes, inDone, inOffset, inRetCode;
+	// a streamed read being sent out, one chunk per continueStream
+	private boolean       streamingOut = false;
+	private int           outBytes, outDone, outOffset;
+	private byte[]        outBuf;
 
 	public ServerThread(ServerContext ctxt, 
 		InputStream inStream, OutputStream outStream) throws IOException {
@@ -31,105 +65,11 @@ public class ServerThread extends Thread {
 
 	public void run() {
 		try {
-			SecureChannel channel = new SecureChannel(inStream, outStream, 
-				context.prg, true, context.privateKey);
-
+			SecureChannel channel = openChannel();
 			while(true) {
-				DataInputBuffer dib = new DataInputBuffer(channel);
-				byte cmd = dib.readByte();
-				switch(cmd) {
-				case ServerContext.CommandPing:
-					int nbytes = dib.readInt();
-					DataOutputBuffer dob = new DataOutputBuffer(channel);
-					dob.writeInt(nbytes);
-					for(int i=0; i<nbytes; ++i){
-						dob.writeByte(dib.readByte());
-					}
-					dob.send();
-					break;
-				case ServerContext.CommandAuthenticate:
-					String username = dib.readString();
-					String password = dib.readString();
-					try {
-						BlockStore bs = context.auth.auth(username, password);
-						if(bs==null) {
-							// authentication failed
-							arrayStore = null;
-						}else{
-							arrayStore = new ArrayStore(bs);
-						}
-					} catch(DataIntegrityException x) {
-						x.printStackTrace();
-						arrayStore = null;
-					}
-					dob = new DataOutputBuffer(channel);
-					dob.writeBoolean(arrayStore != null);
-					dob.send();
-					break;
-				case ServerContext.CommandCreateAccount:
-					username = dib.readString();
-					password = dib.readString();
-					try {
-						BlockStore bs = context.auth.createUser(username, password);
-						if(bs==null){
-							arrayStore = null;
-						}else{
-							arrayStore = new ArrayStore(bs);
-						}
-					} catch(DataIntegrityException x) {
-						x.printStackTrace();
-						arrayStore = null;
-					}
-					dob = new DataOutputBuffer(channel);
-					dob.writeBoolean(arrayStore != null);
-					dob.send();
-					break;
-				case ServerContext.CommandWrite:
-					nbytes = dib.readInt();
-					int storageOffset = dib.readInt();
-					byte[] buf = new byte[nbytes];
-					for(int i=0; i<nbytes; ++i){
-						buf[i] = dib.readByte();
-					}
-					int retCode = ServerContext.SuccessCode;
-					if(arrayStore == null){
-						retCode = ServerContext.UnauthorizedCode;
-					}else{
-						try {
-							arrayStore.write(buf, 0, storageOffset, nbytes);
-						}catch(DataIntegrityException x){
-							retCode = ServerContext.DataIntegrityFailureCode;
-						}
-					}
-					dob = new DataOutputBuffer(channel);
-					dob.writeInt(retCode);
-					dob.send();
-					break;
-				case ServerContext.CommandRead:
-					nbytes = dib.readInt();
-					storageOffset = dib.readInt();
-					buf = new byte[nbytes];
-					retCode = ServerContext.SuccessCode;
-					if(arrayStore == null){
-						retCode = ServerContext.UnauthorizedCode;
-					}else{
-						try {
-							arrayStore.read(buf, 0, storageOffset, nbytes);
-						}catch(DataIntegrityException x){
-							retCode = ServerContext.DataIntegrityFailureCode;
-						}
-					}
-					dob = new DataOutputBuffer(channel);
-					dob.writeInt(retCode);
-					if(retCode==ServerContext.SuccessCode){
-						for(int i=0; i<nbytes; ++i){
-							dob.writeByte(buf[i]);
-						}
-					}
-					dob.send();
-					break;
-				default:
-					System.err.println("ServerThread: invalid command received\n");
+				serveCommand(channel);
+				while(streamingOut){
+					continueStream(channel);
 				}
 			}
 		}catch(EOFException x) {
@@ -137,6 +77,508 @@ public class ServerThread extends Thread {
 		}catch(IOException x) {
 			x.printStackTrace();
 			return;
+		}finally{
+			endSession();
+		}
+	}
+
+	public void endSession() {
+		// Write down anything the session's ArrayStore is still holding.
+		// Servers that call serveCommand themselves call this when the
+		// client goes away.
+		ArrayStore store = arrayStore;
+		if(store != null){
+			try {
+				store.flush();
+			}catch(DataIntegrityException x){
+				x.printStackTrace();
+			}
+		}
+	}
+
+	public boolean isStreaming() {
+		// Whether a streamed read is waiting for continueStream.
+		return streamingOut;
+	}
+
+	public SecureChannel openChannel() throws IOException {
+		// Do the server side of the key exchange with the client.
+		return new NegotiatedChannel(inStream, outStream, context.prg, true, 
+			context.privateKey);
+	}
+
+	public void serveCommand(SecureChannel channel) throws IOException {
+		// Receive one command on <channel>, execute it, and send the reply.
+		// During a streamed write, the message is its next chunk instead.
+		if(streamingIn){
+			receiveChunk(channel);
+			return;
+		}
+		DataInputBuffer dib = new DataInputBuffer(channel);
+		byte cmd = dib.readByte();
+		if( (cmd == ServerContext.CommandTaggedWrite) 
+			|| (cmd == ServerContext.CommandTaggedRead) ){
+			serveTagged(channel, cmd, dib);
+			return;
+		}
+		// other commands wait for every tagged command received before them
+		inFlight.acquireUninterruptibly(ServerContext.MaxPipelinedRequests);
+		inFlight.release(ServerContext.MaxPipelinedRequests);
+		switch(cmd) {
+		case ServerContext.CommandPing:
+			int nbytes = dib.readInt();
+			byte[] pingBytes = new byte[nbytes];
+			dib.readFully(pingBytes, 0, nbytes);
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 4+nbytes);
+			dob.writeInt(nbytes);
+			dob.write(pingBytes, 0, nbytes);
+			dob.send();
+			break;
+		case ServerContext.CommandAuthenticate:
+			String username = dib.readString();
+			String password = dib.readString();
+			endSession();
+			try {
+				BlockStore bs = context.auth.auth(username, password);
+				if(bs==null) {
+					// authentication failed
+					arrayStore = null;
+				}else{
+					arrayStore = context.newArrayStore(bs);
+				}
+			} catch(DataIntegrityException x) {
+				x.printStackTrace();
+				arrayStore = null;
+			}
+			dob = new DataOutputBuffer(channel);
+			dob.writeBoolean(arrayStore != null);
+			dob.send();
+			break;
+		case ServerContext.CommandCreateAccount:
+			username = dib.readString();
+			password = dib.readString();
+			endSession();
+			try {
+				BlockStore bs = context.auth.createUser(username, password);
+				if(bs==null){
+					arrayStore = null;
+				}else{
+					arrayStore = context.newArrayStore(bs);
+				}
+			} catch(DataIntegrityException x) {
+				x.printStackTrace();
+				arrayStore = null;
+			}
+			dob = new DataOutputBuffer(channel);
+			dob.writeBoolean(arrayStore != null);
+			dob.send();
+			break;
+		case ServerContext.CommandWrite:
+			nbytes = dib.readInt();
+			int storageOffset = dib.readInt();
+			ByteBuffer data = dib.readByteBuffer(nbytes);
+			int retCode = ServerContext.SuccessCode;
+			if(arrayStore == null){
+				retCode = ServerContext.UnauthorizedCode;
+			}else{
+				try {
+					arrayStore.write(data, storageOffset);
+				}catch(DataIntegrityException x){
+					retCode = ServerContext.DataIntegrityFailureCode;
+				}
+			}
+			dob = new DataOutputBuffer(channel);
+			dob.writeInt(retCode);
+			dob.send();
+			break;
+		case ServerContext.CommandRead:
+			nbytes = dib.readInt();
+			storageOffset = dib.readInt();
+			byte[] buf = new byte[nbytes];
+			retCode = ServerContext.SuccessCode;
+			if(arrayStore == null){
+				retCode = ServerContext.UnauthorizedCode;
+			}else{
+				try {
+					arrayStore.read(buf, 0, storageOffset, nbytes);
+				}catch(DataIntegrityException x){
+					retCode = ServerContext.DataIntegrityFailureCode;
+				}
+			}
+			dob = new DataOutputBuffer(channel, 
+				(retCode==ServerContext.SuccessCode) ? 4+nbytes : 4);
+			dob.writeInt(retCode);
+			if(retCode==ServerContext.SuccessCode){
+				dob.write(buf, 0, nbytes);
+			}
+			dob.send();
+			break;
+		case ServerContext.CommandStreamWrite:
+			inBytes = dib.readInt();
+			inOffset = dib.readInt();
+			inDone = 0;
+			inRetCode = (arrayStore == null) ? ServerContext.UnauthorizedCode
+				: ServerContext.SuccessCode;
+			streamingIn = true;
+			if(inBytes <= 0){
+				endStreamIn(channel);
+			}
+			break;
+		case ServerContext.CommandStreamRead:
+			outBytes = dib.readInt();
+			outOffset = dib.readInt();
+			outDone = 0;
+			outBuf = new byte[Math.min(ServerContext.StreamChunkSize, 
+				Math.max(outBytes, 0))];
+			streamingOut = true;
+			continueStream(channel);
+			break;
+		case ServerContext.CommandNegotiate:
+			byte[] secret = dib.readByteArray();
+			CipherSuite chosen = context.chooseCipherSuite(dib.readByteArray());
+			if(secret.length != PRF.KeySizeBytes){
+				chosen = CipherSuite.LEGACY;
+			}
+			dob = new DataOutputBuffer(channel, 1);
+			dob.writeByte(chosen.id);
+			dob.send();
+			((NegotiatedChannel) channel).useCipherSuite(chosen, secret);
+			break;
+		case ServerContext.CommandBatchWrite:
+		case ServerContext.CommandBatchRead:
+			serveBatch(channel, cmd == ServerContext.CommandBatchWrite, dib);
+			break;
+		default:
+			System.err.println("ServerThread: invalid command received\n");
+		}
+	}
+
+	private void receiveChunk(SecureChannel channel) throws IOException {
+		// Take in the next chunk of a streamed write, and write it to
+		// storage.  Every chunk is consumed even after a failure, so that we
+		// stay in step with the client.
+		int len = Math.min(ServerContext.StreamChunkSize, inBytes-inDone);
+		ByteBuffer data = new DataInputBuffer(channel).readByteBuffer(len);
+		if(inRetCode == ServerContext.SuccessCode){
+			try {
+				arrayStore.write(data, inOffset+inDone);
+			}catch(DataIntegrityException x){
+				inRetCode = ServerContext.DataIntegrityFailureCode;
+			}
+		}
+		inDone += len;
+		if(inDone >= inBytes){
+			endStreamIn(channel);
+		}
+	}
+
+	private void endStreamIn(SecureChannel channel) throws IOException {
+		streamingIn = false;
+		if(inRetCode == ServerContext.SuccessCode){
+			// the status covers the whole stream, including its last block
+			try {
+				arrayStore.flush();
+			}catch(DataIntegrityException x){
+				inRetCode = ServerContext.DataIntegrityFailureCode;
+			}
+		}
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 4);
+		dob.writeInt(inRetCode);
+		dob.send();
+	}
+
+	public void continueStream(SecureChannel channel) throws IOException {
+		// Send the next chunk of a streamed read, reading it from storage
+		// just before it goes out, so only one chunk is ever held in memory.
+		if(streamingOut){
+			int len = Math.min(ServerContext.StreamChunkSize, outBytes-outDone);
+			int retCode = ServerContext.SuccessCode;
+			if(arrayStore == null){
+				retCode = ServerContext.UnauthorizedCode;
+			}else{
+				try {
+					arrayStore.read(outBuf, 0, outOffset+outDone, len);
+				}catch(DataIntegrityException x){
+					retCode = ServerContext.DataIntegrityFailureCode;
+				}
+			}
+			boolean ok = (retCode == ServerContext.SuccessCode);
+			DataOutputBuffer dob = new DataOutputBuffer(channel, ok ? 4+len : 4);
+			dob.writeInt(retCode);
+			if(ok){
+				dob.write(outBuf, 0, len);
+			}
+			outDone += len;
+			if( (! ok) || (outDone >= outBytes) ){
+				streamingOut = false;
+				outBuf = null;
+			}
+			dob.send();
+		}
+	}
+
+	private void serveTagged(SecureChannel channel, byte cmd, 
+		DataInputBuffer dib) throws IOException {
+		// Start a tagged read or write, and return without waiting for it.
+		// Reads may run alongside each other, but a write waits for all
+		// earlier requests and holds off later ones, so requests that overlap
+		// see the same data they would if they had been run in order.  The
+		// permits are taken here, in arrival order (the semaphore is fair),
+		// and given back once the reply has been sent.  A request with a
+		// bad size or offset gets a BadRequestCode reply, and isn't run.
+		int requestId = dib.readInt();
+		int nbytes = dib.readInt();
+		int storageOffset = dib.readInt();
+		boolean isWrite = (cmd == ServerContext.CommandTaggedWrite);
+		if( (nbytes < 0) || (nbytes > ServerContext.MaxTaggedBytes) 
+			|| (storageOffset < 0) 
+			|| ((long)storageOffset + nbytes > Integer.MAX_VALUE) ){
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 8);
+			dob.writeInt(requestId);
+			dob.writeInt(ServerContext.BadRequestCode);
+			// like a read, so later untagged commands wait for the reply
+			inFlight.acquireUninterruptibly(1);
+			queueReply(channel, dob, 1);
+			return;
+		}
+		ByteBuffer data = isWrite ? dib.readByteBuffer(nbytes) : null;
+		ArrayStore store = arrayStore;
+		int permits = isWrite ? ServerContext.MaxPipelinedRequests : 1;
+
+		inFlight.acquireUninterruptibly(permits);
+		try {
+			context.requestExecutor.execute(() -> runTagged(channel, requestId,
+				store, isWrite, data, nbytes, storageOffset, permits));
+		}catch(RejectedExecutionException x){
+			inFlight.release(permits);
+			throw new IOException("server is shutting down");
+		}
+	}
+
+	private void runTagged(SecureChannel channel, int requestId, 
+		ArrayStore store, boolean isWrite, ByteBuffer data, int nbytes, 
+		int storageOffset, int permits) {
+
+		int retCode = ServerContext.SuccessCode;
+		byte[] buf = null;
+		try {
+			buf = isWrite ? null : new byte[nbytes];
+			if(store == null){
+				retCode = ServerContext.UnauthorizedCode;
+			}else if(isWrite){
+				store.write(data, storageOffset);
+			}else{
+				store.read(buf, 0, storageOffset, nbytes);
+			}
+		}catch(DataIntegrityException x){
+			retCode = ServerContext.DataIntegrityFailureCode;
+		}catch(RuntimeException x){
+			// still owe the client a reply for this tag
+			retCode = ServerContext.BadRequestCode;
+		}
+		try {
+			boolean withData = (! isWrite) && (retCode == ServerContext.SuccessCode);
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 
+				withData ? 8+nbytes : 8);
+			dob.writeInt(requestId);
+			dob.writeInt(retCode);
+			if(withData){
+				dob.write(buf, 0, nbytes);
+			}
+			queueReply(channel, dob, permits);
+		}catch(IOException x){
+			inFlight.release(permits);
+		}
+	}
+
+	private static class QueuedReply {
+		DataOutputBuffer dob;
+		int              permits;   // given back once it has been sent
+	}
+
+	private void queueReply(SecureChannel channel, DataOutputBuffer dob,
+		int permits) {
+		QueuedReply r = new QueuedReply();
+		r.dob = dob;
+		r.permits = permits;
+		replies.add(r);
+		sendReplies(channel);
+	}
+
+	private void sendReplies(SecureChannel channel) {
+		// Send queued replies, unless another thread already is; that one
+		// sends ours too.  The check after letting go catches a reply that
+		// was queued just as the sender finished.
+		while(! replies.isEmpty() && sendingReplies.compareAndSet(false, true)){
+			try {
+				QueuedReply r;
+				while((r = replies.poll()) != null){
+					try {
+						// the session's own replies go on the same channel
+						synchronized(channel){
+							r.dob.send();
+						}
+					}catch(IOException x){
+						// the client has gone away; nobody is left to tell
+					}finally{
+						inFlight.release(r.permits);
+					}
+				}
+			}finally{
+				sendingReplies.set(false);
+			}
+		}
+	}
+
+	private static class BatchRange {
+		int        storageOffset;
+		int        nbytes;
+		ByteBuffer data;    // for a write, what to write; for a read, the result
+		int        status = ServerContext.SuccessCode;
+	}
+
+	private void serveBatch(SecureChannel channel, boolean isWrite, 
+		DataInputBuffer dib) throws IOException {
+		// Run a batch of reads or writes, and reply with the status of each
+		// range, in the order the ranges were given.
+		int count = dib.readInt();
+		if( (count < 0) || (count > dib.available()/8) 
+			|| (count > ServerContext.MaxBatchRanges) ){
+			throw new IOException("malformed batch command");
+		}
+		BatchRange[] ranges = new BatchRange[count];
+		long totalBytes = 0;
+		for(int i=0; i<count; ++i){
+			BatchRange r = new BatchRange();
+			r.storageOffset = dib.readInt();
+			r.nbytes = dib.readInt();
+			totalBytes += r.nbytes;
+			if( (r.nbytes < 0) || (r.storageOffset < 0) 
+				|| (totalBytes > ServerContext.MaxBatchBytes) ){
+				throw new IOException("malformed batch command");
+			}
+			if(isWrite){
+				r.data = dib.readByteBuffer(r.nbytes);
+			}
+			ranges[i] = r;
+		}
+		int replySize = 4*count + (isWrite ? 0 : (int)totalBytes);
+
+		if(arrayStore == null){
+			for(BatchRange r : ranges){
+				r.status = ServerContext.UnauthorizedCode;
+			}
+		}else if(isWrite){
+			writeBatch(ranges);
+		}else{
+			readBatch(ranges);
+		}
+
+		DataOutputBuffer dob = new DataOutputBuffer(channel, replySize);
+		for(BatchRange r : ranges){
+			dob.writeInt(r.status);
+			if( (! isWrite) && (r.status == ServerContext.SuccessCode) ){
+				dob.write(r.data.array(), r.data.arrayOffset()+r.data.position(), 
+					r.nbytes);
+			}
+		}
+		dob.send();
+	}
+
+	private static BatchRange[] sortedByOffset(BatchRange[] ranges) {
+		// stable, so ranges at the same offset keep their list order
+		BatchRange[] sorted = ranges.clone();
+		Arrays.sort(sorted, Comparator.comparingInt(r -> r.storageOffset));
+		return sorted;
+	}
+
+	private void writeBatch(BatchRange[] ranges) {
+		BatchRange[] sorted = sortedByOffset(ranges);
+		for(int i=0; i+1<sorted.length; ++i){
+			if((long)sorted[i].storageOffset + sorted[i].nbytes 
+				> sorted[i+1].storageOffset){
+				// overlapping writes must land in list order, so don't reorder
+				for(int j=0; j<ranges.length; ++j){
+					writeRun(ranges, j, j+1);
+				}
+				return;
+			}
+		}
+		int i = 0;
+		while(i < sorted.length){
+			long end = (long)sorted[i].storageOffset + sorted[i].nbytes;
+			int j = i+1;
+			while( (j < sorted.length) && (sorted[j].storageOffset == end) ){
+				end += sorted[j].nbytes;
+				++j;
+			}
+			writeRun(sorted, i, j);
+			i = j;
+		}
+	}
+
+	private void writeRun(BatchRange[] rs, int from, int to) {
+		// Write rs[from] thru rs[to-1], which lie back to back in storage, as
+		// a single access.
+		ByteBuffer data = rs[from].data;
+		if(to-from > 1){
+			int total = 0;
+			for(int k=from; k<to; ++k){
+				total += rs[k].nbytes;
+			}
+			data = ByteBuffer.allocate(total);
+			for(int k=from; k<to; ++k){
+				data.put(rs[k].data.duplicate());
+			}
+			data.flip();
+		}
+		try {
+			arrayStore.write(data, rs[from].storageOffset);
+		}catch(DataIntegrityException x){
+			for(int k=from; k<to; ++k){
+				rs[k].status = ServerContext.DataIntegrityFailureCode;
+			}
+		}
+	}
+
+	private void readBatch(BatchRange[] ranges) {
+		// Reads can be merged even when they overlap.  A range is merged into
+		// the one before it if it starts no later than the end of the last
+		// block that one touches, since that block is read anyway.  So the
+		// spans read add up to at most MaxBatchBytes plus a block per range.
+		BatchRange[] sorted = sortedByOffset(ranges);
+		long blockSize = arrayStore.blockSize();
+		int i = 0;
+		while(i < sorted.length){
+			long start = sorted[i].storageOffset;
+			long end = start + sorted[i].nbytes;
+			int j = i+1;
+			while( (j < sorted.length) && 
+				(sorted[j].storageOffset <= (end+blockSize-1)/blockSize*blockSize) ){
+				end = Math.max(end, (long)sorted[j].storageOffset + sorted[j].nbytes);
+				++j;
+			}
+			readRun(sorted, i, j, start, end);
+			i = j;
+		}
+	}
+
+	private void readRun(BatchRange[] rs, int from, int to, long start, 
+		long end) {
+		// Read storage from <start> to <end> once, and hand each of rs[from]
+		// thru rs[to-1] its piece.
+		byte[] span = new byte[(int)(end-start)];
+		try {
+			arrayStore.read(span, 0, (int)start, span.length);
+		}catch(DataIntegrityException x){
+			for(int k=from; k<to; ++k){
+				rs[k].status = ServerContext.DataIntegrityFailureCode;
+			}
+			return;
+		}
+		for(int k=from; k<to; ++k){
+			rs[k].data = ByteBuffer.wrap(span, 
+				(int)(rs[k].storageOffset-start), rs[k].nbytes);
 		}
 	}
-}
\ No newline at end of file
+}
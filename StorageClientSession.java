@@ -1,65 +1,158 @@
 
+// A StorageClientSession is the client's end of a connection to a server.
+// Each of read, write, testPing, authenticate and createAccount sends one
+// command and waits for the reply.
+//
+// readAsync and writeAsync instead send a tagged (pipelined) command and
+// return at once, with a CompletableFuture that completes when the reply
+// arrives.  Many of them can be in flight at a time, and the server may
+// answer them in any order; a background thread matches replies to
+// requests by their request ID.  The buffer passed to readAsync or
+// writeAsync must be left alone until the future completes.  Futures are
+// completed on that background thread, so code chained onto them must not
+// block on this session.  The blocking methods first wait for every
+// outstanding async request to finish.  An async request may move at most
+// ServerContext.MaxTaggedBytes.
+//
+// writeBatch and readBatch move several ranges in one command and one
+// round trip, and report a status code for each range.  A batch is limited
+// to ServerContext.MaxBatchRanges ranges and MaxBatchBytes bytes.
+//
+// negotiateCipherSuite can move the connection from the original message
+// protection to a faster AEAD cipher; call it before any other command.
+//
+// Blocking reads and writes of more than StreamThreshold bytes are sent as
+// streamed commands (see ServerContext), so that neither end has to hold
+// the whole transfer as a single message.
+
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.UnknownHostException;
 
 
 public class StorageClientSession {
-	private SecureChannel channel;
+	public static final int StreamThreshold = ServerContext.StreamChunkSize;
+
+	private Socket        sock = null;
+	private NegotiatedChannel channel;
+	private PRGen         prg;
 	private boolean       authenticated = false;
 
+	// state for pipelined requests; guarded by this
+	private int           nextRequestId = 0;
+	private HashMap<Integer,PendingRequest> pending =
+		new HashMap<Integer,PendingRequest>();
+	private Thread        replyReader = null;
+	private boolean       syncInProgress = false;
+	private byte[]        syncReply = null;
+	private IOException   readerFailure = null;
+
+	private static class PendingRequest {
+		boolean                 isRead;
+		int                     nbytes;
+		int                     bufOffset;
+		byte[]                  buf;
+		CompletableFuture<Void> future = new CompletableFuture<Void>();
+	}
+
 	public StorageClientSession(String serverHostname, int serverPort, 
 		String serverPublicKeyFilename, PRGen prg) 
 	throws UnknownHostException, IOException {
 		// This constructor connects to a server across the network.
-		Socket sock = new Socket(serverHostname, serverPort);
+		sock = new Socket(serverHostname, serverPort);
 		RSAKey serverKey = KeyHandler.readKeyFromFile(serverPublicKeyFilename);
-		channel = new SecureChannel(sock.getInputStream(), 
+		channel = new NegotiatedChannel(sock.getInputStream(), 
 			sock.getOutputStream(), prg, false, serverKey);
+		this.prg = prg;
 	}
 
 	public StorageClientSession(InputStream inStr, OutputStream outStr,
 		RSAKey serverPublicKey, PRGen prg) throws IOException {
 		// This constructor connects to a local server (e.g. one set up by
 		// LocalTestHarness).
-		channel = new SecureChannel(inStr, outStr, prg, false, 
+		channel = new NegotiatedChannel(inStr, outStr, prg, false, 
 			serverPublicKey); 
+		this.prg = prg;
+	}
+
+	public void close() throws IOException {
+		// Hang up on a network server.  The server ends the session when it
+		// sees the connection close.
+		if(sock != null){
+			sock.close();
+		}
 	}
 
-	public void testPing(int nbytes, int offset, byte[] buf) throws IOException {
+	public synchronized CipherSuite negotiateCipherSuite(
+		CipherSuite... offered) throws IOException {
+		// Offer <offered>, most preferred first, and switch to whichever one
+		// the server picks.  Returns that suite; LEGACY means nothing changed.
+		if(replyReader != null){
+			// the reply thread may already be reading under the old suite
+			throw new IllegalStateException("negotiate before async requests");
+		}
+		byte[] secret = new byte[PRF.KeySizeBytes];
+		prg.nextBytes(secret);
+		byte[] ids = new byte[offered.length];
+		for(int i=0; i<offered.length; ++i){
+			ids[i] = offered[i].id;
+		}
+		beginSync();
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 
+			9+secret.length+ids.length);
+		dob.writeByte(ServerContext.CommandNegotiate);
+		dob.writeByteArray(secret);
+		dob.writeByteArray(ids);
+		sendRequest(dob);
+
+		DataInputBuffer dib = receiveReply();
+		CipherSuite chosen = CipherSuite.fromId(dib.readByte());
+		if(chosen == null){
+			throw new IOException("server picked an unknown cipher suite");
+		}
+		channel.useCipherSuite(chosen, secret);
+		return chosen;
+	}
+
+	public synchronized void testPing(int nbytes, int offset, byte[] buf) 
+	throws IOException {
+		beginSync();
 		// send bytes to server, see what server sends back
 		// assertion will fail if server sends back something different
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 5+nbytes);
 		dob.writeByte(ServerContext.CommandPing);
 		dob.writeInt(nbytes);
-		for(int i=0; i<nbytes; ++i){
-			dob.writeByte(buf[i+offset]);
-		}
-		dob.send();
-		DataInputBuffer dib = new DataInputBuffer(channel);
+		dob.write(buf, offset, nbytes);
+		sendRequest(dob);
+		DataInputBuffer dib = receiveReply();
 		int nbytesRecvd = dib.readInt();
 		assert nbytesRecvd == nbytes;
+		byte[] recvd = new byte[nbytes];
+		dib.readFully(recvd, 0, nbytes);
 		for(int i=0; i<nbytes; ++i){
-			byte recvd = dib.readByte();
-			assert recvd == buf[i+offset];
+			assert recvd[i] == buf[i+offset];
 		}
 	}
 
-	public void authenticate(String name, String password) 
+	public synchronized void authenticate(String name, String password) 
 		throws AccessDeniedException, IOException {
 		// Authenticate as the user <name>, with password <password>.
 		// If no account exists for <name>, or if <password> is not the correct 
 		// password for <name>, then throw AccessDeniedException.
+		beginSync();
 		DataOutputBuffer dob = new DataOutputBuffer(channel);
 		dob.writeByte(ServerContext.CommandAuthenticate);
 		dob.writeString(name);
 		dob.writeString(password);
-		dob.send();
+		sendRequest(dob);
 
-		DataInputBuffer dib = new DataInputBuffer(channel);
+		DataInputBuffer dib = receiveReply();
 		boolean success = dib.readBoolean();
 		if(success){
 			authenticated = true;
@@ -68,7 +161,7 @@ public class StorageClientSession {
 		}
 	}
 
-	public void createAccount(String name, String password) 
+	public synchronized void createAccount(String name, String password) 
 		throws AccessDeniedException, IOException {
 		// If this client is already authenticated, throw AccessDeniedException.
 		// Otherwise, if an account already exists for <name>, 
@@ -77,35 +170,39 @@ public class StorageClientSession {
 		if(authenticated){
 			throw new AccessDeniedException();
 		}
+		beginSync();
 		DataOutputBuffer dob = new DataOutputBuffer(channel);
 		dob.writeByte(ServerContext.CommandCreateAccount);
 		dob.writeString(name);
 		dob.writeString(password);
-		dob.send();
+		sendRequest(dob);
 
-		DataInputBuffer dib = new DataInputBuffer(channel);
+		DataInputBuffer dib = receiveReply();
 		boolean success = dib.readBoolean();
 		if(! success)    throw new AccessDeniedException();
 	}
 
-	public void write(int nbytes, int storageOffset, int bufOffset, byte[] buf) 
-		throws AccessDeniedException, IOException {
+	public synchronized void write(int nbytes, int storageOffset, 
+		int bufOffset, byte[] buf) throws AccessDeniedException, IOException {
 		// If this client is not authenticated, throw AccessDeniedException.
 		// Otherwise, write data to the storage of the authenticated user.
 		if( ! authenticated){
 			throw new AccessDeniedException();
 		}
+		if(nbytes > StreamThreshold){
+			streamWrite(nbytes, storageOffset, bufOffset, buf);
+			return;
+		}
+		beginSync();
 
-		DataOutputBuffer dob = new DataOutputBuffer(channel);
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 9+nbytes);
 		dob.writeByte(ServerContext.CommandWrite);
 		dob.writeInt(nbytes);
 		dob.writeInt(storageOffset);
-		for(int i=0; i<nbytes; ++i){
-			dob.writeByte(buf[bufOffset+i]);
-		}
-		dob.send();
+		dob.write(buf, bufOffset, nbytes);
+		sendRequest(dob);
 
-		DataInputBuffer dib = new DataInputBuffer(channel);
+		DataInputBuffer dib = receiveReply();
 		int retCode = dib.readInt();
 		if(retCode == ServerContext.UnauthorizedCode){
 			throw new AccessDeniedException();
@@ -114,30 +211,359 @@ public class StorageClientSession {
 		}
 	}
 
-	public void read(int nbytes, int storageOffset, int bufOffset, byte[] buf) 
-		throws AccessDeniedException, IOException {
+	public synchronized void read(int nbytes, int storageOffset, 
+		int bufOffset, byte[] buf) throws AccessDeniedException, IOException {
 		// If this client is not authenticated, throw AccessDeniedException.
 		// Otherwise, read data from the storage of the authenticated user.
 
 		if( ! authenticated){
 			throw new AccessDeniedException();
 		}
+		if(nbytes > StreamThreshold){
+			streamRead(nbytes, storageOffset, bufOffset, buf);
+			return;
+		}
+		beginSync();
 
 		DataOutputBuffer dob = new DataOutputBuffer(channel);
 		dob.writeByte(ServerContext.CommandRead);;
 		dob.writeInt(nbytes);
 		dob.writeInt(storageOffset);
-		dob.send();
+		sendRequest(dob);
 
-		DataInputBuffer dib = new DataInputBuffer(channel);
+		DataInputBuffer dib = receiveReply();
 		int retCode = dib.readInt();
 		if(retCode == ServerContext.UnauthorizedCode){
 			throw new AccessDeniedException();
 		}else if(retCode == ServerContext.DataIntegrityFailureCode){
 			throw new IOException("Integrity failure on server");
 		}
-		for(int i=0; i<nbytes; ++i){
-			buf[bufOffset+i] = dib.readByte();
+		dib.readFully(buf, bufOffset, nbytes);
+	}
+
+	private void streamWrite(int nbytes, int storageOffset, int bufOffset, 
+		byte[] buf) throws AccessDeniedException, IOException {
+		beginSync();
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 9);
+		dob.writeByte(ServerContext.CommandStreamWrite);
+		dob.writeInt(nbytes);
+		dob.writeInt(storageOffset);
+		sendRequest(dob);
+		for(int done=0; done<nbytes; ){
+			int len = Math.min(ServerContext.StreamChunkSize, nbytes-done);
+			dob = new DataOutputBuffer(channel, len);
+			dob.write(buf, bufOffset+done, len);
+			sendRequest(dob);
+			done += len;
+		}
+
+		DataInputBuffer dib = receiveReply();
+		int retCode = dib.readInt();
+		if(retCode == ServerContext.UnauthorizedCode){
+			throw new AccessDeniedException();
+		}else if(retCode == ServerContext.DataIntegrityFailureCode){
+			throw new IOException("Integrity failure on server");
+		}
+	}
+
+	private void streamRead(int nbytes, int storageOffset, int bufOffset, 
+		byte[] buf) throws AccessDeniedException, IOException {
+		beginSync();
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 9);
+		dob.writeByte(ServerContext.CommandStreamRead);
+		dob.writeInt(nbytes);
+		dob.writeInt(storageOffset);
+		sendRequest(dob);
+
+		int done = 0;
+		do {
+			int len = Math.min(ServerContext.StreamChunkSize, nbytes-done);
+			DataInputBuffer dib = receiveReply(done+len >= nbytes);
+			int retCode = dib.readInt();
+			if(retCode != ServerContext.SuccessCode){
+				// the server stops sending at the first failure
+				endSync();
+				if(retCode == ServerContext.UnauthorizedCode){
+					throw new AccessDeniedException();
+				}
+				throw new IOException("Integrity failure on server");
+			}
+			dib.readFully(buf, bufOffset+done, len);
+			done += len;
+		} while(done < nbytes);
+	}
+
+	public synchronized int[] writeBatch(int[] storageOffsets, int[] lengths,
+		int[] bufOffsets, byte[] buf) throws AccessDeniedException, IOException {
+		// Write range i, lengths[i] bytes from buf[bufOffsets[i]], to storage
+		// at storageOffsets[i], for every i, in a single command.  Returns the
+		// status code (ServerContext.SuccessCode etc.) for each range.  If
+		// ranges overlap, later ones in the list win.
+		if( ! authenticated){
+			throw new AccessDeniedException();
 		}
+		checkBatch(lengths);
+		int n = storageOffsets.length;
+		int size = 5;
+		for(int i=0; i<n; ++i){
+			size += 8 + lengths[i];
+		}
+		beginSync();
+		DataOutputBuffer dob = new DataOutputBuffer(channel, size);
+		dob.writeByte(ServerContext.CommandBatchWrite);
+		dob.writeInt(n);
+		for(int i=0; i<n; ++i){
+			dob.writeInt(storageOffsets[i]);
+			dob.writeInt(lengths[i]);
+			dob.write(buf, bufOffsets[i], lengths[i]);
+		}
+		sendRequest(dob);
+
+		DataInputBuffer dib = receiveReply();
+		int[] status = new int[n];
+		for(int i=0; i<n; ++i){
+			status[i] = dib.readInt();
+		}
+		return status;
+	}
+
+	public synchronized int[] readBatch(int[] storageOffsets, int[] lengths,
+		int[] bufOffsets, byte[] buf) throws AccessDeniedException, IOException {
+		// Read lengths[i] bytes of storage at storageOffsets[i] into
+		// buf[bufOffsets[i]], for every i, in a single command.  Returns the
+		// status code for each range; ranges that failed are left alone.
+		if( ! authenticated){
+			throw new AccessDeniedException();
+		}
+		checkBatch(lengths);
+		int n = storageOffsets.length;
+		beginSync();
+		DataOutputBuffer dob = new DataOutputBuffer(channel, 5+8*n);
+		dob.writeByte(ServerContext.CommandBatchRead);
+		dob.writeInt(n);
+		for(int i=0; i<n; ++i){
+			dob.writeInt(storageOffsets[i]);
+			dob.writeInt(lengths[i]);
+		}
+		sendRequest(dob);
+
+		DataInputBuffer dib = receiveReply();
+		int[] status = new int[n];
+		for(int i=0; i<n; ++i){
+			status[i] = dib.readInt();
+			if(status[i] == ServerContext.SuccessCode){
+				dib.readFully(buf, bufOffsets[i], lengths[i]);
+			}
+		}
+		return status;
+	}
+
+	private static void checkBatch(int[] lengths) {
+		// The server drops the connection on a batch over its limits, so
+		// don't send one.
+		long total = 0;
+		for(int len : lengths){
+			total += len;
+		}
+		if( (lengths.length > ServerContext.MaxBatchRanges)
+			|| (total > ServerContext.MaxBatchBytes) ){
+			throw new IllegalArgumentException("batch too large");
+		}
+	}
+
+	public CompletableFuture<Void> writeAsync(int nbytes, int storageOffset,
+		int bufOffset, byte[] buf) {
+		// Like write, but pipelined; see the comment at the top of the file.
+		return sendTagged(false, nbytes, storageOffset, bufOffset, buf);
+	}
+
+	public CompletableFuture<Void> readAsync(int nbytes, int storageOffset,
+		int bufOffset, byte[] buf) {
+		// Like read, but pipelined.  <buf> is filled in before the future
+		// completes.
+		return sendTagged(true, nbytes, storageOffset, bufOffset, buf);
+	}
+
+	private synchronized CompletableFuture<Void> sendTagged(boolean isRead,
+		int nbytes, int storageOffset, int bufOffset, byte[] buf) {
+
+		PendingRequest req = new PendingRequest();
+		req.isRead = isRead;
+		req.nbytes = nbytes;
+		req.bufOffset = bufOffset;
+		req.buf = buf;
+		if( ! authenticated){
+			req.future.completeExceptionally(new AccessDeniedException());
+			return req.future;
+		}
+		if(nbytes > ServerContext.MaxTaggedBytes){
+			// the server would refuse it
+			req.future.completeExceptionally(
+				new IllegalArgumentException("request too large"));
+			return req.future;
+		}
+		try {
+			while(syncInProgress){
+				wait();
+			}
+		}catch(InterruptedException x){
+			req.future.completeExceptionally(new InterruptedIOException());
+			return req.future;
+		}
+		if(readerFailure != null){
+			req.future.completeExceptionally(readerFailure);
+			return req.future;
+		}
+		int requestId = nextRequestId++;
+		// register before sending, so the reply can't beat us to the map
+		pending.put(requestId, req);
+		try {
+			DataOutputBuffer dob = new DataOutputBuffer(channel, 
+				isRead ? 13 : 13+nbytes);
+			dob.writeByte(isRead ? ServerContext.CommandTaggedRead
+				: ServerContext.CommandTaggedWrite);
+			dob.writeInt(requestId);
+			dob.writeInt(nbytes);
+			dob.writeInt(storageOffset);
+			if( ! isRead){
+				dob.write(buf, bufOffset, nbytes);
+			}
+			dob.send();
+		}catch(IOException x){
+			pending.remove(requestId);
+			req.future.completeExceptionally(x);
+			return req.future;
+		}
+		if(replyReader == null){
+			replyReader = new Thread(this::readReplies,
+				"StorageClientSession-replies");
+			replyReader.setDaemon(true);
+			replyReader.start();
+		}
+		return req.future;
+	}
+
+	private void readReplies() {
+		// Runs on the reply thread.  Once this thread exists, it receives
+		// every message from the server, handing replies to blocking
+		// commands over to the thread that sent them.
+		try {
+			while(true){
+				byte[] msg = channel.receiveMessage();
+				synchronized(this){
+					// a streamed read has several parts; hand them over one
+					// at a time
+					while(syncInProgress && (syncReply != null)){
+						wait();
+					}
+					if(syncInProgress){
+						syncReply = msg;
+						notifyAll();
+						continue;
+					}
+				}
+				DataInputBuffer dib = new DataInputBuffer(msg);
+				int requestId = dib.readInt();
+				int retCode = dib.readInt();
+				PendingRequest req;
+				synchronized(this){
+					req = pending.get(requestId);
+				}
+				if(req == null){
+					throw new IOException("Reply to unknown request " + requestId);
+				}
+				if(retCode == ServerContext.SuccessCode){
+					if(req.isRead){
+						dib.readFully(req.buf, req.bufOffset, req.nbytes);
+					}
+					req.future.complete(null);
+				}else if(retCode == ServerContext.UnauthorizedCode){
+					req.future.completeExceptionally(new AccessDeniedException());
+				}else if(retCode == ServerContext.BadRequestCode){
+					req.future.completeExceptionally(
+						new IOException("Request refused by server"));
+				}else{
+					req.future.completeExceptionally(
+						new IOException("Integrity failure on server"));
+				}
+				synchronized(this){
+					pending.remove(requestId);
+					notifyAll();
+				}
+			}
+		}catch(IOException | InterruptedException x){
+			IOException failure = (x instanceof IOException) ? (IOException) x
+				: new InterruptedIOException();
+			synchronized(this){
+				readerFailure = failure;
+				for(PendingRequest req : pending.values()){
+					req.future.completeExceptionally(failure);
+				}
+				pending.clear();
+				notifyAll();
+			}
+		}
+	}
+
+	private void beginSync() throws IOException {
+		// Called, holding the lock, by each blocking command before it sends
+		// anything: waits for outstanding async requests, and holds off new
+		// ones until the reply has been received.
+		try {
+			while(! pending.isEmpty()){
+				wait();
+			}
+		}catch(InterruptedException x){
+			throw new InterruptedIOException();
+		}
+		syncInProgress = true;
+	}
+
+	private void sendRequest(DataOutputBuffer dob) throws IOException {
+		try {
+			dob.send();
+		}catch(IOException x){
+			endSync();
+			throw x;
+		}
+	}
+
+	private DataInputBuffer receiveReply() throws IOException {
+		return receiveReply(true);
+	}
+
+	private DataInputBuffer receiveReply(boolean last) throws IOException {
+		// Receive the reply to a blocking command, or one part of it.  The
+		// command ends with its <last> part, or if anything goes wrong.
+		boolean ok = false;
+		try {
+			DataInputBuffer dib;
+			if(replyReader == null){
+				dib = new DataInputBuffer(channel);
+			}else{
+				while( (syncReply == null) && (readerFailure == null) ){
+					wait();
+				}
+				if(syncReply == null){
+					throw readerFailure;
+				}
+				dib = new DataInputBuffer(syncReply);
+				syncReply = null;
+				notifyAll();
+			}
+			ok = true;
+			return dib;
+		}catch(InterruptedException x){
+			throw new InterruptedIOException();
+		}finally{
+			if(last || ! ok){
+				endSync();
+			}
+		}
+	}
+
+	private void endSync() {
+		syncInProgress = false;
+		notifyAll();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,322 @@
+// A BlockStore that spreads its ordinary blocks over several member
+// BlockStores (usually one per disk or directory), RAID-0 style, so that
+// their throughput adds up.
+//
+// Blocks are dealt out in stripe units of <stripeUnitBlocks> consecutive
+// blocks: unit 0 goes to member 0, unit 1 to member 1, and so on, wrapping
+// around.  A run of blocks (readBlocks/writeBlocks) is split up by member,
+// and the members' shares are done at the same time on <executor>, with the
+// calling thread doing the first share itself.  Single-block accesses go
+// straight to the member that holds the block.
+//
+// The superblock is mirrored: writes go to every member, and reads come
+// from the first member that can supply it.  Each member's superblock also
+// ends with a record of the geometry (number of members, stripe unit, and
+// which member it is), which is checked when the store is opened, so
+// opening the members in the wrong order, or with a different stripe unit,
+// fails instead of scrambling the data.  Members whose superblocks are all
+// zero are taken to be new, and get the geometry written to them.
+//
+// Like RAID-0, there is no redundancy in the ordinary blocks: losing any
+// member loses data.  All members must have the same block and superblock
+// sizes, and must allow concurrent access to different blocks.
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+
+public class StripedBlockStore implements BlockStore {
+	public static final int DefaultStripeUnitBlocks = 16;
+
+	private static final int GeometryBytes = 24;
+
+	private BlockStore[] members;
+	private int          stripeUnit;
+	private Executor     executor;
+	private int          blockSize;
+	private int          superBlockSize;
+
+	public StripedBlockStore(BlockStore[] members)
+	throws DataIntegrityException {
+		this(members, DefaultStripeUnitBlocks);
+	}
+
+	public StripedBlockStore(BlockStore[] members, int stripeUnitBlocks)
+	throws DataIntegrityException {
+		this(members, stripeUnitBlocks,
+			Executors.newFixedThreadPool(4*members.length, r -> {
+				Thread t = new Thread(r, "StripedBlockStore-io");
+				t.setDaemon(true);
+				return t;
+			}));
+	}
+
+	public StripedBlockStore(BlockStore[] members, int stripeUnitBlocks,
+		Executor executor) throws DataIntegrityException {
+
+		if(members.length == 0 || stripeUnitBlocks < 1){
+			throw new IllegalArgumentException();
+		}
+		for(BlockStore m : members){
+			if(m.blockSize() != members[0].blockSize()
+				|| m.superBlockSize() != members[0].superBlockSize()){
+				throw new IllegalArgumentException(
+					"members must all have the same geometry");
+			}
+		}
+		this.members = members.clone();
+		stripeUnit = stripeUnitBlocks;
+		this.executor = executor;
+		blockSize = members[0].blockSize();
+		superBlockSize = members[0].superBlockSize() - GeometryBytes;
+		checkGeometry();
+	}
+
+	private void checkGeometry() throws DataIntegrityException {
+		boolean allNew = true;
+		byte[][] found = new byte[members.length][GeometryBytes];
+		for(int i=0; i<members.length; ++i){
+			members[i].readSuperBlock(found[i], 0, superBlockSize,
+				GeometryBytes);
+			for(byte b : found[i]){
+				allNew = allNew && (b == 0);
+			}
+		}
+		if(allNew){
+			writeGeometry();
+			return;
+		}
+		for(int i=0; i<members.length; ++i){
+			if(LongUtils.bytesToLong(found[i], 0) != members.length
+				|| LongUtils.bytesToLong(found[i], 8) != stripeUnit
+				|| LongUtils.bytesToLong(found[i], 16) != i){
+				throw new DataIntegrityException();
+			}
+		}
+	}
+
+	private void writeGeometry() throws DataIntegrityException {
+		byte[] geometry = new byte[GeometryBytes];
+		LongUtils.longToBytes((long)members.length, geometry, 0);
+		LongUtils.longToBytes((long)stripeUnit, geometry, 8);
+		for(int i=0; i<members.length; ++i){
+			LongUtils.longToBytes((long)i, geometry, 16);
+			members[i].writeSuperBlock(geometry, 0, superBlockSize,
+				GeometryBytes);
+		}
+	}
+
+	public void format() throws DataIntegrityException {
+		List<Callable<Void>> shares = new ArrayList<Callable<Void>>();
+		for(BlockStore m : members){
+			shares.add(() -> {
+				m.format();
+				return null;
+			});
+		}
+		runAll(shares);
+		writeGeometry();
+	}
+
+	public int blockSize() {
+		return blockSize;
+	}
+
+	public int superBlockSize() {
+		return superBlockSize;
+	}
+
+	private int memberOf(int blockNum) {
+		return (blockNum / stripeUnit) % members.length;
+	}
+
+	private int memberBlockNum(int blockNum) {
+		int stripeRow = (blockNum / stripeUnit) / members.length;
+		return stripeRow*stripeUnit + blockNum % stripeUnit;
+	}
+
+	public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		members[memberOf(blockNum)].writeBlock(memberBlockNum(blockNum), buf,
+			bufOffset, blockOffset, nbytes);
+	}
+
+	public void readBlock(int blockNum, byte[] buf, int bufOffset,
+		int blockOffset, int nbytes) throws DataIntegrityException {
+
+		if(blockNum < 0){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		members[memberOf(blockNum)].readBlock(memberBlockNum(blockNum), buf,
+			bufOffset, blockOffset, nbytes);
+	}
+
+	public void readBlocks(int[] blockNums, byte[] buf, int bufOffset)
+		throws DataIntegrityException {
+
+		// each member reads its share into a buffer of its own, which is
+		// then scattered to where the blocks belong in <buf>
+		int[][] positions = sharePositions(blockNums);
+		List<Callable<Void>> shares = new ArrayList<Callable<Void>>();
+		for(int m=0; m<members.length; ++m){
+			int[] pos = positions[m];
+			if(pos.length == 0){
+				continue;
+			}
+			BlockStore member = members[m];
+			shares.add(() -> {
+				byte[] share = new byte[pos.length*blockSize];
+				member.readBlocks(memberBlockNums(blockNums, pos), share, 0);
+				for(int i=0; i<pos.length; ++i){
+					System.arraycopy(share, i*blockSize, buf,
+						bufOffset+pos[i]*blockSize, blockSize);
+				}
+				return null;
+			});
+		}
+		runAll(shares);
+	}
+
+	public void writeBlocks(int[] blockNums, byte[] buf, int bufOffset)
+		throws DataIntegrityException {
+
+		int[][] positions = sharePositions(blockNums);
+		List<Callable<Void>> shares = new ArrayList<Callable<Void>>();
+		for(int m=0; m<members.length; ++m){
+			int[] pos = positions[m];
+			if(pos.length == 0){
+				continue;
+			}
+			BlockStore member = members[m];
+			shares.add(() -> {
+				byte[] share = new byte[pos.length*blockSize];
+				for(int i=0; i<pos.length; ++i){
+					System.arraycopy(buf, bufOffset+pos[i]*blockSize, share,
+						i*blockSize, blockSize);
+				}
+				member.writeBlocks(memberBlockNums(blockNums, pos), share, 0);
+				return null;
+			});
+		}
+		runAll(shares);
+	}
+
+	private int[][] sharePositions(int[] blockNums) {
+		// For each member, the positions in <blockNums> of its blocks, in
+		// their original order.
+		int[] counts = new int[members.length];
+		for(int bn : blockNums){
+			if(bn < 0){
+				throw new ArrayIndexOutOfBoundsException();
+			}
+			++counts[memberOf(bn)];
+		}
+		int[][] ret = new int[members.length][];
+		for(int m=0; m<members.length; ++m){
+			ret[m] = new int[counts[m]];
+			counts[m] = 0;
+		}
+		for(int i=0; i<blockNums.length; ++i){
+			int m = memberOf(blockNums[i]);
+			ret[m][counts[m]++] = i;
+		}
+		return ret;
+	}
+
+	private int[] memberBlockNums(int[] blockNums, int[] positions) {
+		int[] ret = new int[positions.length];
+		for(int i=0; i<positions.length; ++i){
+			ret[i] = memberBlockNum(blockNums[positions[i]]);
+		}
+		return ret;
+	}
+
+	private void runAll(List<Callable<Void>> shares)
+		throws DataIntegrityException {
+		// Run the shares at once, the first on this thread.  Wait for all of
+		// them, even after a failure, and report the first failure in order.
+		if(shares.isEmpty()){
+			return;
+		}
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		for(int i=1; i<shares.size(); ++i){
+			FutureTask<Void> task = new FutureTask<Void>(shares.get(i));
+			tasks.add(task);
+			executor.execute(task);
+		}
+		Throwable failure = null;
+		try {
+			shares.get(0).call();
+		}catch(Exception x){
+			failure = x;
+		}
+		boolean interrupted = false;
+		for(FutureTask<Void> task : tasks){
+			while(true){
+				try {
+					task.get();
+					break;
+				}catch(InterruptedException x){
+					interrupted = true;
+				}catch(ExecutionException x){
+					if(failure == null){
+						failure = x.getCause();
+					}
+					break;
+				}
+			}
+		}
+		if(interrupted){
+			Thread.currentThread().interrupt();
+		}
+		if(failure instanceof DataIntegrityException){
+			throw (DataIntegrityException) failure;
+		}else if(failure instanceof RuntimeException){
+			throw (RuntimeException) failure;
+		}else if(failure != null){
+			throw new RuntimeException(failure);
+		}
+	}
+
+	public void writeSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (nbytes<0)
+			|| (blockOffset+nbytes > superBlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		for(BlockStore m : members){
+			m.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+
+	public void readSuperBlock(byte[] buf, int bufOffset, int blockOffset,
+		int nbytes) throws DataIntegrityException {
+
+		if( (blockOffset<0) || (nbytes<0)
+			|| (blockOffset+nbytes > superBlockSize) ){
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		DataIntegrityException failure = null;
+		for(BlockStore m : members){
+			try {
+				m.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+				return;
+			}catch(DataIntegrityException x){
+				if(failure == null){
+					failure = x;
+				}
+			}
+		}
+		throw failure;
+	}
+}
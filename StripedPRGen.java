@@ -0,0 +1,93 @@
+// A PRGen that many threads can use at once without waiting for each
+// other.  Each thread that asks for bytes gets its own child generator,
+// keyed from the master seed and a child number that is never reused, so
+// no two threads ever see the same output.  A child makes its output
+// PRF.OutputSizeBytes at a time in counter mode, ChunkBytes at a go, and
+// then replaces its key with one derived from the old key, so output
+// already handed out can't be recomputed from the generator's state.
+//
+// PRGen itself isn't safe to share between threads; this is.
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.ShortBufferException;
+
+
+public class StripedPRGen extends PRGen {
+	private static final long serialVersionUID = 1L;
+
+	public static final int ChunkBytes = 4096;
+
+	private static final byte[] RekeyLabel = { 1 };
+
+	private PRF        masterPrf;
+	private AtomicLong nextChild = new AtomicLong(0);
+	private ThreadLocal<Child> children = ThreadLocal.withInitial(this::newChild);
+
+	public StripedPRGen(byte[] seed) {
+		super(seed);
+		masterPrf = new PRF(seed);
+	}
+
+	private Child newChild() {
+		byte[] label = new byte[9];
+		label[0] = 0;
+		LongUtils.longToBytes(nextChild.getAndIncrement(), label, 1);
+		return new Child(masterPrf.eval(label));
+	}
+
+	protected int next(int bits) {
+		return children.get().nextInt() >>> (32-bits);
+	}
+
+	public void nextBytes(byte[] bytes) {
+		children.get().nextBytes(bytes);
+	}
+
+	private static class Child {
+		private PRF    prf;
+		private byte[] buf = new byte[ChunkBytes];
+		private int    pos = ChunkBytes;
+
+		Child(byte[] key) {
+			prf = new PRF(key);
+		}
+
+		private void refill() {
+			byte[] counter = new byte[8];
+			try {
+				for(int off=0; off<ChunkBytes; off+=PRF.OutputSizeBytes){
+					LongUtils.longToBytes(off, counter, 0);
+					prf.eval(counter, 0, counter.length, buf, off);
+				}
+			}catch(ShortBufferException x){
+				throw new IllegalStateException(x);
+			}
+			prf = new PRF(prf.eval(RekeyLabel));
+			pos = 0;
+		}
+
+		int nextInt() {
+			if(pos+4 > ChunkBytes){
+				refill();
+			}
+			int ret = ((buf[pos] & 0xff) << 24) | ((buf[pos+1] & 0xff) << 16)
+				| ((buf[pos+2] & 0xff) << 8) | (buf[pos+3] & 0xff);
+			pos += 4;
+			return ret;
+		}
+
+		void nextBytes(byte[] bytes) {
+			int done = 0;
+			while(done < bytes.length){
+				if(pos == ChunkBytes){
+					refill();
+				}
+				int n = Math.min(ChunkBytes-pos, bytes.length-done);
+				System.arraycopy(buf, pos, bytes, done, n);
+				pos += n;
+				done += n;
+			}
+		}
+	}
+}
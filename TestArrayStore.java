@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.FileNotFoundException;
+
+
+public class TestArrayStore {
+	public static void main(String[] args)
+		throws FileNotFoundException, DataIntegrityException {
+
+		FileBlockDevice dev = new FileBlockDevice("testArrayStoreDevice");
+		dev.format();
+		CountingStore counting = new CountingStore(dev);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		Random rand = new Random(17);
+		boolean passed = true;
+
+		// a request big enough to be split into runs, starting and ending
+		// part way into a block, must land exactly where a plain ArrayStore
+		// puts it, through both byte arrays and direct buffers
+		ArrayStore plain = new ArrayStore(dev);
+		ArrayStore par = new ArrayStore(dev, executor, 8);
+		int offset = 3*dev.blockSize() + 100;
+		byte[] data = new byte[20*ArrayStore.MinParallelRunBytes + 77];
+		rand.nextBytes(data);
+		par.write(data, 0, offset, data.length);
+		byte[] got = new byte[data.length];
+		plain.read(got, 0, offset, got.length);
+		passed = passed && Arrays.equals(got, data);
+		rand.nextBytes(data);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+		par.write(direct, offset);
+		direct.clear();
+		par.read(direct, offset);
+		direct.flip();
+		direct.get(got);
+		passed = passed && Arrays.equals(got, data);
+
+		// sequential reads, with writes through the same ArrayStore landing
+		// in the part already read ahead, must still see the new data
+		ArrayStore as = new ArrayStore(dev, executor, 8);
+		as.setReadAhead(256*1024);
+		byte[] model = new byte[2*1024*1024];
+		rand.nextBytes(model);
+		plain.write(model, 0, 0, model.length);
+		int pos = 0;
+		while(pos + 10000 <= model.length){
+			if( (pos/10000) % 7 == 3 ){
+				byte[] patch = new byte[3000];
+				rand.nextBytes(patch);
+				int patchAt = pos + 5000 + rand.nextInt(50000);
+				as.write(patch, 0, patchAt, patch.length);
+				System.arraycopy(patch, 0, model, patchAt, patch.length);
+			}
+			byte[] chunk = new byte[10000];
+			as.read(chunk, 0, pos, chunk.length);
+			if(! Arrays.equals(chunk, 0, chunk.length, model, pos,
+				pos+chunk.length)){
+				passed = false;
+			}
+			pos += chunk.length;
+		}
+
+		// small sequential writes go down as whole blocks, the partial block
+		// at the end is visible through the ArrayStore before flush(), and
+		// is on the device after it
+		as = new ArrayStore(counting, executor, 8);
+		as.setWriteCoalescing(true);
+		byte[] small = new byte[100];
+		int numWrites = 1000;
+		for(int i=0; i<numWrites; ++i){
+			rand.nextBytes(small);
+			as.write(small, 0, i*small.length, small.length);
+			System.arraycopy(small, 0, model, i*small.length, small.length);
+		}
+		int end = numWrites*small.length;
+		if(counting.writes.get() > end/dev.blockSize() + 2)    passed = false;
+		got = new byte[small.length];
+		as.read(got, 0, end-small.length, got.length);
+		passed = passed && Arrays.equals(got, 0, got.length, model,
+			end-small.length, end);
+		as.write(small, 0, end, small.length);
+		System.arraycopy(small, 0, model, end, small.length);
+		end += small.length;
+		as.flush();
+		got = new byte[end];
+		plain.read(got, 0, 0, end);
+		passed = passed && Arrays.equals(got, 0, end, model, 0, end);
+
+		// a held block whose write fails stays held, and a later flush()
+		// writes it
+		as.write(small, 0, end, small.length);
+		as.write(small, 0, end+small.length, small.length);
+		counting.failWrites = true;
+		try {
+			as.flush();
+			passed = false;
+		}catch(DataIntegrityException x){
+		}
+		counting.failWrites = false;
+		as.flush();
+		got = new byte[2*small.length];
+		plain.read(got, 0, end, got.length);
+		passed = passed && Arrays.equals(got, 0, small.length, small, 0,
+			small.length);
+		passed = passed && Arrays.equals(got, small.length, got.length,
+			small, 0, small.length);
+
+		executor.shutdown();
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static class CountingStore implements BlockStore {
+		// a BlockStore that counts block writes, and can be made to fail them
+		BlockStore      dev;
+		AtomicInteger   writes = new AtomicInteger();
+		volatile boolean failWrites = false;
+
+		CountingStore(BlockStore dev) {
+			this.dev = dev;
+		}
+
+		public void format() throws DataIntegrityException {
+			dev.format();
+		}
+
+		public int blockSize() {    return dev.blockSize();    }
+		public int superBlockSize() {    return dev.superBlockSize();    }
+
+		public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			if(failWrites){
+				throw new DataIntegrityException();
+			}
+			writes.incrementAndGet();
+			dev.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			dev.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void writeSuperBlock(byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readSuperBlock(byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+}
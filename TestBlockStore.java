@@ -1,4 +1,7 @@
 
+import java.nio.ByteBuffer;
+
+
 public class TestBlockStore {
 	public static byte[] makeBlock(BlockStore bs, int salt) {
 		byte[] ret = new byte[bs.blockSize()];
@@ -26,6 +29,57 @@ public class TestBlockStore {
 			}
 		}
 
+		// a partial write must change only the bytes it covers
+		byte[] patch = { 11, 22, 33, 44, 55, 66, 77, 88 };
+		int patchOffset = bs.blockSize()/2;
+		bs.writeBlock(3, patch, 0, patchOffset, patch.length);
+		byte[] checkBlock = makeBlock(bs, 3);
+		for(int i=0; i<patch.length; ++i){
+			checkBlock[patchOffset+i] = patch[i];
+		}
+		byte[] rdBlock = new byte[bs.blockSize()];
+		bs.readBlock(3, rdBlock, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rdBlock[i]!=checkBlock[i]) {
+				return false;
+			}
+		}
+
+		// ByteBuffer transfers, through a direct buffer, must match too
+		ByteBuffer direct = ByteBuffer.allocateDirect(bs.blockSize());
+		direct.put(makeBlock(bs, 77));
+		direct.flip();
+		bs.writeBlock(40, direct, 0);
+		ByteBuffer piece = ByteBuffer.allocateDirect(40);
+		bs.readBlock(40, piece, 9);
+		piece.flip();
+		checkBlock = makeBlock(bs, 77);
+		for(int i=0; i<40; ++i){
+			if(piece.get(i) != checkBlock[9+i]) {
+				return false;
+			}
+		}
+
+		// vectored writes and reads must match the single-block calls
+		int bsize = bs.blockSize();
+		byte[] run = new byte[6*bsize];
+		for(int i=0; i<6; ++i){
+			System.arraycopy(makeBlock(bs, 100+i), 0, run, i*bsize, bsize);
+		}
+		bs.writeBlocks(30, 6, run, 0);
+		int[] gather = { 35, 31, 33 };
+		byte[] gathered = new byte[3*bsize+7];
+		bs.readBlocks(gather, gathered, 7);
+		for(int i=0; i<gather.length; ++i){
+			bs.readBlock(gather[i], rdBlock, 0, 0, bsize);
+			for(int j=0; j<bsize; ++j){
+				if( (rdBlock[j] != run[(gather[i]-30)*bsize+j]) 
+					|| (gathered[7+i*bsize+j] != rdBlock[j]) ){
+					return false;
+				}
+			}
+		}
+
 		return true;
 	}
 }
\ No newline at end of file
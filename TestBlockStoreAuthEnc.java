@@ -1,4 +1,6 @@
 
+import java.util.Arrays;
+
 import java.io.FileNotFoundException;
 
 
@@ -17,10 +19,89 @@ public class TestBlockStoreAuthEnc {
 		PRGen prg = new PRGen(prgSeed);
 		BlockStore bs = new BlockStoreAuthEnc(dev, prg);
 		boolean passed = TestBlockStore.test(bs);
+
+		// keyed, so blocks really are encrypted and tagged
+		for(CipherSuite suite : CipherSuite.values()){
+			if(suite.isAvailable()){
+				passed = testKeyed(dev, prg, suite) && passed;
+			}
+		}
 		if(passed){
 			System.out.println("OK");
 		}else{
 			System.out.println("FAILED");
 		}
 	}
-}
\ No newline at end of file
+
+	static boolean testKeyed(BlockStore dev, PRGen prg, CipherSuite suite)
+	throws DataIntegrityException {
+		dev.format();
+		byte[] key = new byte[PRF.KeySizeBytes];
+		prg.nextBytes(key);
+		BlockStoreAuthEnc enc = new BlockStoreAuthEnc(dev, prg, key, suite);
+		boolean passed = TestBlockStore.test(enc);
+		int overhead = enc.overheadBytes();
+
+		// the data must not be visible in the underlying store
+		byte[] block = TestBlockStore.makeBlock(enc, 17);
+		enc.writeBlock(50, block, 0, 0, enc.blockSize());
+		byte[] raw = new byte[dev.blockSize()];
+		dev.readBlock(50, raw, 0, 0, raw.length);
+		int same = 0;
+		for(int i=0; i<enc.blockSize(); ++i){
+			if(raw[i+overhead] == block[i])    ++same;
+		}
+		if(same > enc.blockSize()/16)    passed = false;
+
+		// a partial read decrypts just the range asked for
+		byte[] part = new byte[100];
+		enc.readBlock(50, part, 0, 1000, part.length);
+		for(int i=0; i<part.length; ++i){
+			if(part[i] != block[1000+i])    passed = false;
+		}
+
+		// a flipped ciphertext bit, or a block moved to another number,
+		// must be caught
+		raw[overhead+7] ^= 1;
+		dev.writeBlock(51, raw, 0, 0, raw.length);
+		raw[overhead+7] ^= 1;
+		dev.writeBlock(52, raw, 0, 0, raw.length);
+		for(int bn=51; bn<=52; ++bn){
+			try {
+				enc.readBlock(bn, part, 0, 0, part.length);
+				passed = false;
+			}catch(DataIntegrityException x){
+				// expected
+			}
+		}
+
+		// zeroing just the nonce and tag must not pass the block off as
+		// never written
+		dev.readBlock(50, raw, 0, 0, raw.length);
+		if(suite.isAEAD()){
+			Arrays.fill(raw, 0, CipherSuite.NonceSizeBytes, (byte)0);
+			Arrays.fill(raw, raw.length-CipherSuite.TagSizeBytes, raw.length,
+				(byte)0);
+		}else{
+			Arrays.fill(raw, 0, overhead, (byte)0);
+		}
+		dev.writeBlock(50, raw, 0, 0, raw.length);
+		try {
+			enc.readBlock(50, part, 0, 0, part.length);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		// a tampered block fails a parallel multi-block read too
+		int[] bns = { 4, 5, 6, 7, 52, 8 };
+		byte[] many = new byte[bns.length * enc.blockSize()];
+		try {
+			enc.readBlocks(bns, many, 0);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		return passed;
+	}
+}
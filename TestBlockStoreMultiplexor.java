@@ -1,13 +1,170 @@
-
 import java.io.FileNotFoundException;
 
 
 public class TestBlockStoreMultiplexor {
  public static void main(String[] args) 
+  throws FileNotFoundException, DataIntegrityException {
+    test(BlockStoreMultiplexor.LayoutLegacy, 1);
+    test(BlockStoreMultiplexor.LayoutIndexed, 1);
+    test(BlockStoreMultiplexor.LayoutIndexed, 64);
+    testRefill(BlockStoreMultiplexor.LayoutLegacy, 1);
+    testRefill(BlockStoreMultiplexor.LayoutIndexed, 1);
+    testRefill(BlockStoreMultiplexor.LayoutIndexed, 64);
+    testConcurrent(BlockStoreMultiplexor.LayoutLegacy, 1);
+    testConcurrent(BlockStoreMultiplexor.LayoutIndexed, 16);
+    testConcurrentPartial(CipherSuite.LEGACY);
+    testConcurrentPartial(CipherSuite.AES_GCM);
+    System.out.println("Done");
+  }
+
+  private static void testConcurrentPartial(CipherSuite suite) 
+  throws FileNotFoundException, DataIntegrityException {
+    // several threads each keep writing their own small range of the same
+    // few blocks, through an encrypting store, whose partial writes re-seal
+    // the whole block; every thread's last write must survive
+    FileBlockDevice dev = new FileBlockDevice("testFileDevice");
+    dev.format();
+    byte[] seed = new byte[PRGen.KeySizeBytes];
+    seed[0] = 42;
+    PRGen prg = new StripedPRGen(seed);
+    BlockStoreAuthEnc enc = new BlockStoreAuthEnc(dev, prg,
+      new byte[PRF.KeySizeBytes], suite);
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(enc);
+    BlockStore st = mux.newSubStore();
+
+    int numThreads = 8;
+    int numBlocks = 4;
+    int rangeBytes = 16;
+    boolean[] failed = new boolean[1];
+    Thread[] threads = new Thread[numThreads];
+    for(int t=0; t<numThreads; ++t){
+      int offset = t*rangeBytes;
+      threads[t] = new Thread(() -> {
+        try {
+          byte[] range = new byte[rangeBytes];
+          for(int round=1; round<=100; ++round){
+            for(int i=0; i<rangeBytes; ++i){
+              range[i] = (byte)(offset + round);
+            }
+            for(int bn=0; bn<numBlocks; ++bn){
+              st.writeBlock(bn, range, 0, offset, rangeBytes);
+            }
+          }
+        }catch(DataIntegrityException x){
+          failed[0] = true;
+        }
+      });
+    }
+    for(Thread t : threads){
+      t.start();
+    }
+    for(Thread t : threads){
+      try {
+        t.join();
+      }catch(InterruptedException x){
+        failed[0] = true;
+      }
+    }
+
+    byte[] block = new byte[st.blockSize()];
+    for(int bn=0; bn<numBlocks; ++bn){
+      st.readBlock(bn, block, 0, 0, block.length);
+      for(int i=0; i<numThreads*rangeBytes; ++i){
+        if(block[i] != (byte)((i/rangeBytes)*rangeBytes + 100)){
+          failed[0] = true;
+        }
+      }
+    }
+    if(failed[0]){
+      System.out.println("Concurrent partial write failure");
+    }
+  }
+
+  private static void testConcurrent(int layout, int reservation) 
+  throws FileNotFoundException, DataIntegrityException {
+    // several threads create stores and fill them at once, while another
+    // keeps truncating and refilling a store of its own; no two stores may
+    // end up sharing a block.  FileBlockDevice is fast enough for the
+    // threads to really overlap.
+    FileBlockDevice wrappedStore = new FileBlockDevice("testFileDevice");
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, 
+      layout);
+    mux.setReservationSize(reservation);
+    BlockStore churn = mux.newSubStore();
+
+    int numThreads = 8;
+    int numBlocks = 200;
+    boolean[] failed = new boolean[1];
+    Thread[] threads = new Thread[numThreads+1];
+    for(int t=0; t<numThreads; ++t){
+      int salt = 1000*(t+1);
+      threads[t] = new Thread(() -> {
+        try {
+          // the salt goes in the superblock, so the check below can tell
+          // which thread a store belongs to
+          BlockStore st = mux.newSubStore();
+          byte[] saltBuf = new byte[8];
+          LongUtils.longToBytes((long)salt, saltBuf, 0);
+          st.writeSuperBlock(saltBuf, 0, 0, 8);
+          for(int bn=0; bn<numBlocks; ++bn){
+            byte[] block = TestBlockStore.makeBlock(st, salt+bn);
+            st.writeBlock(bn, block, 0, 0, st.blockSize());
+          }
+        }catch(DataIntegrityException x){
+          failed[0] = true;
+        }
+      });
+    }
+    threads[numThreads] = new Thread(() -> {
+      try {
+        byte[] block = TestBlockStore.makeBlock(churn, 1);
+        for(int round=0; round<50; ++round){
+          for(int bn=0; bn<8; ++bn){
+            churn.writeBlock(bn, block, 0, 0, churn.blockSize());
+          }
+          mux.truncateSubStore(0, 0);
+        }
+      }catch(DataIntegrityException x){
+        failed[0] = true;
+      }
+    });
+    for(Thread t : threads){
+      t.start();
+    }
+    for(Thread t : threads){
+      try {
+        t.join();
+      }catch(InterruptedException x){
+        failed[0] = true;
+      }
+    }
+
+    if(failed[0] || mux.numSubStores() != numThreads+1){
+      System.out.println("Concurrent failure");
+    }
+    // check through a fresh multiplexor, which reads everything from disk
+    BlockStoreMultiplexor mux2 = new BlockStoreMultiplexor(wrappedStore);
+    for(int i=1; i<=numThreads; ++i){
+      BlockStore st = mux2.getSubStore(i);
+      byte[] saltBuf = new byte[8];
+      st.readSuperBlock(saltBuf, 0, 0, 8);
+      int salt = (int) LongUtils.bytesToLong(saltBuf, 0);
+      for(int bn=0; bn<numBlocks; ++bn){
+        if(! checkBlock(st, bn, TestBlockStore.makeBlock(st, salt+bn))){
+          System.out.println("Concurrent failure");
+        }
+      }
+    }
+  }
+
+  private static void test(int layout, int reservation) 
   throws FileNotFoundException, DataIntegrityException {
     BlockDevice wrappedStore = new BlockDevice("testDevice");
     wrappedStore.format();
-    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore);
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, 
+      layout);
+    mux.setReservationSize(reservation);
     for(int i=0; i<7; ++i){
       BlockStore st = mux.newSubStore();
       boolean worked = TestBlockStore.test(st);
@@ -15,6 +172,143 @@ public class TestBlockStoreMultiplexor {
         System.out.println("Data failure");
       }
     }
-    System.out.println("Done");
-  }	
-}
\ No newline at end of file
+
+    // a block far out in the store, to exercise a deeper tree
+    BlockStore st0 = mux.getSubStore(0);
+    byte[] farBlock = TestBlockStore.makeBlock(st0, 99);
+    st0.writeBlock(300000, farBlock, 0, 0, st0.blockSize());
+
+    // reopen the device with a fresh multiplexor, which has nothing 
+    // cached, and check that the data is still reachable; the layout
+    // passed here must be ignored in favor of the recorded one.  There is
+    // no flush, as if the server had died, so new allocations must not
+    // land on blocks that are already in use.
+    BlockStoreMultiplexor mux2 = new BlockStoreMultiplexor(wrappedStore);
+    if(mux2.numSubStores() != 7){
+      System.out.println("Data failure");
+    }
+    if(! TestBlockStore.test(mux2.newSubStore())){
+      System.out.println("Data failure");
+    }
+    for(int i=0; i<7; ++i){
+      BlockStore st = mux2.getSubStore(i);
+      for(int bn=4; bn<24; ++bn){
+        if(! checkBlock(st, bn, TestBlockStore.makeBlock(st, bn))){
+          System.out.println("Data failure");
+        }
+      }
+    }
+    if(! checkBlock(mux2.getSubStore(0), 300000, farBlock)){
+      System.out.println("Data failure");
+    }
+
+    // free store 1 and the tail of store 2, then refill them; the freed
+    // blocks must be reused instead of growing the wrapped store
+    mux2.flush();
+    mux2.deleteSubStore(1);
+    mux2.truncateSubStore(2, 10);
+    if(layout == BlockStoreMultiplexor.LayoutIndexed){
+      mux2.trimSubStore(0, 5, 3);
+    }
+    long hwm = highWaterMark(wrappedStore);
+    BlockStore st1 = mux2.getSubStore(1);
+    byte[] zeroes = new byte[st1.blockSize()];
+    if(! checkBlock(st1, 7, zeroes) || ! checkBlock(mux2.getSubStore(2), 12, 
+      zeroes) || ! checkBlock(mux2.getSubStore(2), 9, 
+      TestBlockStore.makeBlock(st1, 9))){
+      System.out.println("Data failure");
+    }
+    if(! TestBlockStore.test(st1)){
+      System.out.println("Data failure");
+    }
+    if(highWaterMark(wrappedStore) > hwm){
+      System.out.println("Freed blocks not reused");
+    }
+
+    // truncation must keep every block below the cut and drop every block
+    // at or above it (block 3 carries the test's patch, so skip it)
+    BlockStore st2 = mux2.getSubStore(2);
+    for(int bn=0; bn<10; ++bn){
+      if(bn != 3 && ! checkBlock(st2, bn, TestBlockStore.makeBlock(st2, bn))){
+        System.out.println("Data failure");
+      }
+    }
+    for(int bn=10; bn<41; ++bn){
+      if(! checkBlock(st2, bn, zeroes)){
+        System.out.println("Data failure");
+      }
+    }
+
+    // the free map must survive a reopen
+    BlockStoreMultiplexor mux3 = new BlockStoreMultiplexor(wrappedStore);
+    for(int i=3; i<7; ++i){
+      for(int bn=4; bn<24; ++bn){
+        BlockStore st = mux3.getSubStore(i);
+        if(! checkBlock(st, bn, TestBlockStore.makeBlock(st, bn))){
+          System.out.println("Data failure");
+        }
+      }
+    }
+  }
+
+  private static void testRefill(int layout, int reservation) 
+  throws FileNotFoundException, DataIntegrityException {
+    // Delete a store while another is being appended to, so that the next
+    // block to allocate is at the high-water mark; the appends must still
+    // go into the freed blocks instead of growing the wrapped store.
+    BlockDevice wrappedStore = new BlockDevice("testDevice");
+    wrappedStore.format();
+    BlockStoreMultiplexor mux = new BlockStoreMultiplexor(wrappedStore, 
+      layout);
+    mux.setReservationSize(reservation);
+    // a first delete sets up the free map, whose blocks would otherwise be
+    // allocated in between and hide the case being tested
+    BlockStore scratch = mux.newSubStore();
+    scratch.writeBlock(0, TestBlockStore.makeBlock(scratch, 0), 0, 0, 
+      scratch.blockSize());
+    mux.deleteSubStore(0);
+    BlockStore doomed = mux.newSubStore();
+    BlockStore keeper = mux.newSubStore();
+    for(int bn=0; bn<40; ++bn){
+      doomed.writeBlock(bn, TestBlockStore.makeBlock(doomed, bn), 0, 0, 
+        doomed.blockSize());
+    }
+    for(int bn=0; bn<4; ++bn){
+      keeper.writeBlock(bn, TestBlockStore.makeBlock(keeper, bn), 0, 0, 
+        keeper.blockSize());
+    }
+    mux.deleteSubStore(1);
+    long hwm = highWaterMark(wrappedStore);
+    for(int bn=4; bn<36; ++bn){
+      keeper.writeBlock(bn, TestBlockStore.makeBlock(keeper, bn), 0, 0, 
+        keeper.blockSize());
+    }
+    if(highWaterMark(wrappedStore) > hwm){
+      System.out.println("Freed blocks not reused");
+    }
+    for(int bn=0; bn<36; ++bn){
+      if(! checkBlock(keeper, bn, TestBlockStore.makeBlock(keeper, bn))){
+        System.out.println("Data failure");
+      }
+    }
+  }
+
+  private static long highWaterMark(BlockStore wrappedStore) 
+  throws DataIntegrityException {
+    byte[] buf = new byte[8];
+    wrappedStore.readSuperBlock(buf, 0, wrappedStore.superBlockSize()-8, 8);
+    return LongUtils.bytesToLong(buf, 0);
+  }
+
+  private static boolean checkBlock(BlockStore st, int bn, byte[] expected) 
+  throws DataIntegrityException {
+    byte[] rdBlock = new byte[st.blockSize()];
+    st.readBlock(bn, rdBlock, 0, 0, st.blockSize());
+    for(int j=0; j<st.blockSize(); ++j){
+      if(rdBlock[j] != expected[j]){
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,109 @@
+import java.io.FileNotFoundException;
+
+
+public class TestCachingBlockStore {
+	public static void main(String[] args) 
+		throws FileNotFoundException, DataIntegrityException {
+
+		boolean passed = true;
+		CachingBlockStore.EvictionPolicy[] policies = {
+			new CachingBlockStore.LRU(), new CachingBlockStore.Clock()
+		};
+		for(CachingBlockStore.EvictionPolicy policy : policies){
+			// a budget of a few blocks forces plenty of evictions
+			BlockDevice dev = new BlockDevice("testDevice");
+			CachingBlockStore cbs = new CachingBlockStore(dev, 
+				5*dev.blockSize(), policy, 0);
+			passed = passed && TestBlockStore.test(cbs);
+
+			// after a flush, the wrapped store must hold the same data
+			cbs.flush();
+			for(int bn=4; bn<24; ++bn){
+				byte[] checkBlock = TestBlockStore.makeBlock(dev, bn);
+				byte[] rdBlock = new byte[dev.blockSize()];
+				dev.readBlock(bn, rdBlock, 0, 0, dev.blockSize());
+				for(int i=0; i<dev.blockSize(); ++i){
+					if(rdBlock[i] != checkBlock[i])    passed = false;
+				}
+			}
+		}
+
+		// a write-back that fails during eviction must leave the block dirty,
+		// so that a later eviction writes it instead of dropping it
+		FailingDevice fdev = new FailingDevice("testDevice");
+		fdev.format();
+		CachingBlockStore cbs = new CachingBlockStore(fdev,
+			2*fdev.blockSize(), new CachingBlockStore.LRU(), 0);
+		cbs.writeBlock(0, TestBlockStore.makeBlock(cbs, 50), 0, 0,
+			cbs.blockSize());
+		cbs.writeBlock(1, TestBlockStore.makeBlock(cbs, 51), 0, 0,
+			cbs.blockSize());
+		fdev.failWrites = true;
+		try {
+			cbs.writeBlock(2, TestBlockStore.makeBlock(cbs, 52), 0, 0,
+				cbs.blockSize());
+			passed = false;
+		}catch(DataIntegrityException x){
+		}
+		fdev.failWrites = false;
+		cbs.writeBlock(2, TestBlockStore.makeBlock(cbs, 52), 0, 0,
+			cbs.blockSize());
+		cbs.writeBlock(3, TestBlockStore.makeBlock(cbs, 53), 0, 0,
+			cbs.blockSize());
+		for(int bn=0; bn<2; ++bn){
+			byte[] checkBlock = TestBlockStore.makeBlock(fdev, 50+bn);
+			byte[] rdBlock = new byte[fdev.blockSize()];
+			fdev.readBlock(bn, rdBlock, 0, 0, fdev.blockSize());
+			for(int i=0; i<fdev.blockSize(); ++i){
+				if(rdBlock[i] != checkBlock[i])    passed = false;
+			}
+		}
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+
+	private static class FailingDevice implements BlockStore {
+		// a BlockDevice whose block writes can be made to fail
+		BlockDevice dev;
+		boolean     failWrites = false;
+
+		FailingDevice(String pathname) throws FileNotFoundException {
+			dev = new BlockDevice(pathname);
+		}
+
+		public void format() {    dev.format();    }
+		public int blockSize() {    return dev.blockSize();    }
+		public int superBlockSize() {    return dev.superBlockSize();    }
+
+		public void writeBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			if(failWrites){
+				throw new DataIntegrityException();
+			}
+			dev.writeBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readBlock(int blockNum, byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			dev.readBlock(blockNum, buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void writeSuperBlock(byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			dev.writeSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+
+		public void readSuperBlock(byte[] buf, int bufOffset,
+			int blockOffset, int nbytes) throws DataIntegrityException {
+
+			dev.readSuperBlock(buf, bufOffset, blockOffset, nbytes);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+import java.io.FileNotFoundException;
+
+
+public class TestFileBlockDevice {
+	public static void main(String[] args)
+		throws FileNotFoundException, DataIntegrityException {
+
+		BlockStore bs = new FileBlockDevice("testFileDevice");
+		boolean passed = TestBlockStore.test(bs);
+
+		// partial writes must leave the rest of the block alone
+		byte[] full = TestBlockStore.makeBlock(bs, 5);
+		byte[] patch = { 1, 2, 3 };
+		bs.writeBlock(7, full, 0, 0, bs.blockSize());
+		bs.writeBlock(7, patch, 0, 100, patch.length);
+		full[100] = 1;    full[101] = 2;    full[102] = 3;
+		byte[] rd = new byte[bs.blockSize()];
+		bs.readBlock(7, rd, 0, 0, bs.blockSize());
+		for(int i=0; i<bs.blockSize(); ++i){
+			if(rd[i] != full[i])    passed = false;
+		}
+
+		// after format, the superblock reads as zeroes
+		byte[] sb = new byte[bs.superBlockSize()];
+		sb[3] = 9;
+		bs.writeSuperBlock(sb, 0, 0, sb.length);
+		bs.format();
+		bs.readSuperBlock(sb, 0, 0, sb.length);
+		for(int i=0; i<sb.length; ++i){
+			if(sb[i] != 0)    passed = false;
+		}
+
+		// threads growing the file at once must never cut off each other's
+		// blocks; one block of preallocation makes every write grow it
+		FileBlockDevice grower = new FileBlockDevice("testFileDeviceGrow", 1);
+		grower.format();
+		int numThreads = 8;
+		int perThread = 200;
+		Thread[] threads = new Thread[numThreads];
+		for(int t=0; t<numThreads; ++t){
+			int first = t;
+			threads[t] = new Thread(() -> {
+				for(int k=0; k<perThread; ++k){
+					int bn = k*numThreads + first;
+					grower.writeBlock(bn, TestBlockStore.makeBlock(grower, bn), 0,
+						0, grower.blockSize());
+				}
+			});
+			threads[t].start();
+		}
+		for(Thread t : threads){
+			try {
+				t.join();
+			}catch(InterruptedException x){
+				passed = false;
+			}
+		}
+		for(int bn=0; bn<numThreads*perThread; ++bn){
+			byte[] want = TestBlockStore.makeBlock(grower, bn);
+			grower.readBlock(bn, rd, 0, 0, grower.blockSize());
+			for(int i=0; i<grower.blockSize(); ++i){
+				if(rd[i] != want[i])    passed = false;
+			}
+		}
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+}
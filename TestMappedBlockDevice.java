@@ -0,0 +1,85 @@
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+
+public class TestMappedBlockDevice {
+	public static void main(String[] args)
+		throws FileNotFoundException, IOException, DataIntegrityException {
+
+		// small segments, so that the test crosses several of them
+		MappedBlockDevice bs = new MappedBlockDevice("testMappedDevice",
+			16*MappedBlockDevice.BlockSize,
+			MappedBlockDevice.SyncMode.FORCE_EACH_WRITE, 0);
+		boolean passed = TestBlockStore.test(bs);
+		bs.close();
+
+		// reopen in the default mode and check that the data survived,
+		// including the partial write the test above makes to block 3
+		MappedBlockDevice bs2 = new MappedBlockDevice("testMappedDevice");
+		byte[] patch = { 11, 22, 33, 44, 55, 66, 77, 88 };
+		for(int bn=0; bn<24; ++bn){
+			byte[] checkBlock = TestBlockStore.makeBlock(bs2, bn);
+			if(bn == 3){
+				System.arraycopy(patch, 0, checkBlock, bs2.blockSize()/2,
+					patch.length);
+			}
+			byte[] rdBlock = new byte[bs2.blockSize()];
+			bs2.readBlock(bn, rdBlock, 0, 0, bs2.blockSize());
+			for(int i=0; i<bs2.blockSize(); ++i){
+				if(rdBlock[i] != checkBlock[i])    passed = false;
+			}
+		}
+		bs2.close();
+
+		// opening a device maps nothing, so a new file stays empty, even
+		// after reading its superblock
+		new File("testMappedDeviceLazy").delete();
+		MappedBlockDevice lazy = new MappedBlockDevice("testMappedDeviceLazy");
+		byte[] sb = new byte[lazy.superBlockSize()];
+		lazy.readSuperBlock(sb, 0, 0, sb.length);
+		if(new File("testMappedDeviceLazy").length() != 0)    passed = false;
+		lazy.close();
+
+		// reads and writes racing with format() must not touch a mapping of
+		// the truncated file
+		MappedBlockDevice racy = new MappedBlockDevice("testMappedDevice",
+			16*MappedBlockDevice.BlockSize,
+			MappedBlockDevice.SyncMode.FORCE_ON_SYNC, 0);
+		AtomicBoolean stop = new AtomicBoolean(false);
+		Thread[] threads = new Thread[4];
+		for(int t=0; t<threads.length; ++t){
+			final int salt = t;
+			threads[t] = new Thread(() -> {
+				byte[] buf = new byte[racy.blockSize()];
+				int bn = salt;
+				while(! stop.get()){
+					racy.writeBlock(bn, buf, 0, 0, buf.length);
+					racy.readBlock(bn+7, buf, 0, 0, buf.length);
+					bn = (bn + 13) % 200;
+				}
+			});
+			threads[t].start();
+		}
+		for(int i=0; i<200; ++i){
+			racy.format();
+		}
+		stop.set(true);
+		for(Thread t : threads){
+			try {
+				t.join();
+			}catch(InterruptedException x){
+				passed = false;
+			}
+		}
+		racy.close();
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+}
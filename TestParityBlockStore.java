@@ -1,17 +1,51 @@
-
 import java.io.FileNotFoundException;
 
 
 public class TestParityBlockStore {
-	public static void main(String[] args) 
+	public static void main(String[] args)
 	throws FileNotFoundException, DataIntegrityException {
+		boolean passed = true;
 		BlockDevice bd = new BlockDevice("TestParityBlockStoreDevice");
 		ParityBlockStore pbs = new ParityBlockStore(bd);
-		boolean result = TestBlockStore.test(pbs);
-		if(result) {
+		passed = passed && TestBlockStore.test(pbs);
+
+		ParityBlockStore ipbs = new ParityBlockStore(bd, true);
+		passed = passed && TestBlockStore.test(ipbs);
+
+		// both modes keep the same layout, so small writes made in one must
+		// read back correctly in the other
+		byte[] patch = { 5, 6, 7 };
+		ipbs.writeBlock(7, patch, 0, 1, patch.length);
+		ipbs.writeBlock(7, patch, 1, ipbs.blockSize()-2, 2);
+		pbs.writeBlock(8, patch, 0, 0, 1);
+		byte[] checkBlock = TestBlockStore.makeBlock(pbs, 7);
+		checkBlock[1] = 5;
+		checkBlock[2] = 6;
+		checkBlock[3] = 7;
+		checkBlock[pbs.blockSize()-2] = 6;
+		checkBlock[pbs.blockSize()-1] = 7;
+		byte[] rdBlock = new byte[pbs.blockSize()];
+		pbs.readBlock(7, rdBlock, 0, 0, pbs.blockSize());
+		for(int i=0; i<pbs.blockSize(); ++i){
+			if(rdBlock[i] != checkBlock[i])    passed = false;
+		}
+		byte[] rdByte = new byte[1];
+		ipbs.readBlock(8, rdByte, 0, 0, 1);
+		if(rdByte[0] != 5)    passed = false;
+
+		// damage behind the store's back must be caught, even by a read
+		// that doesn't cover the damaged byte
+		bd.writeBlock(7, patch, 0, 100, 1);
+		try {
+			ipbs.readBlock(7, rdByte, 0, 0, 1);
+			passed = false;
+		}catch(DataIntegrityException x){
+		}
+
+		if(passed) {
 			System.out.println("OK");
 		}else{
 			System.out.println("FAILED TestParityBlockStore");
 		}
 	}
-}
\ No newline at end of file
+}
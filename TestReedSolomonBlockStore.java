@@ -0,0 +1,70 @@
+import java.io.FileNotFoundException;
+
+
+public class TestReedSolomonBlockStore {
+	public static void main(String[] args) 
+	throws FileNotFoundException, DataIntegrityException {
+		// 3 data + 2 parity members, each a ParityBlockStore so that a
+		// damaged block shows up as a DataIntegrityException
+		boolean passed = true;
+		BlockDevice[] devs = new BlockDevice[5];
+		BlockStore[] members = new BlockStore[5];
+		for(int i=0; i<devs.length; ++i){
+			devs[i] = new BlockDevice("testReedSolomonDevice" + i);
+			devs[i].format();
+			members[i] = new ParityBlockStore(devs[i]);
+		}
+		ReedSolomonBlockStore rs = new ReedSolomonBlockStore(members, 3);
+		passed = passed && TestBlockStore.test(rs);
+
+		// partial writes keep the parity up to date
+		int bs = rs.blockSize();
+		byte[] expected = TestBlockStore.makeBlock(rs, 50);
+		rs.writeBlock(50, expected, 0, 0, bs);
+		byte[] patch = TestBlockStore.makeBlock(rs, 51);
+		rs.writeBlock(50, patch, 10, 100, 300);
+		System.arraycopy(patch, 10, expected, 100, 300);
+
+		// damage block 50 (row 16, slot 2) on its member and one more block
+		// of the same row, behind the parity byte's back
+		damage(devs[(2+16) % 5], 16);
+		damage(devs[(0+16) % 5], 16);
+		byte[] rdBlock = new byte[bs];
+		rs.readBlock(50, rdBlock, 0, 0, bs);
+		for(int i=0; i<bs; ++i){
+			if(rdBlock[i] != expected[i])    passed = false;
+		}
+
+		// the read repaired the block on its member
+		members[(2+16) % 5].readBlock(16, rdBlock, 0, 0, bs);
+		for(int i=0; i<bs; ++i){
+			if(rdBlock[i] != expected[i])    passed = false;
+		}
+
+		// slot 0 is still damaged; losing two more blocks of the row is more
+		// than 2 parity blocks can cover
+		damage(devs[(2+16) % 5], 16);
+		damage(devs[(3+16) % 5], 16);
+		try {
+			rs.readBlock(50, rdBlock, 0, 0, bs);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED TestReedSolomonBlockStore");
+		}
+	}
+
+	private static void damage(BlockStore dev, int blockNum) 
+	throws DataIntegrityException {
+		// flip the bits of one byte, which the parity byte will notice
+		byte[] b = new byte[1];
+		dev.readBlock(blockNum, b, 0, 7, 1);
+		b[0] = (byte) ~b[0];
+		dev.writeBlock(blockNum, b, 0, 7, 1);
+	}
+}
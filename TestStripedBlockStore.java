@@ -0,0 +1,62 @@
+import java.io.FileNotFoundException;
+
+
+public class TestStripedBlockStore {
+	public static void main(String[] args) 
+	throws FileNotFoundException, DataIntegrityException {
+		boolean passed = true;
+		BlockDevice[] devs = new BlockDevice[3];
+		for(int i=0; i<devs.length; ++i){
+			devs[i] = new BlockDevice("testStripedDevice" + i);
+			devs[i].format();
+		}
+		StripedBlockStore sbs = new StripedBlockStore(devs, 2);
+		passed = passed && TestBlockStore.test(sbs);
+
+		// a run spanning every member, written and read as one request
+		int bs = sbs.blockSize();
+		byte[] run = new byte[20*bs];
+		for(int i=0; i<20; ++i){
+			System.arraycopy(TestBlockStore.makeBlock(sbs, 100+i), 0, run, 
+				i*bs, bs);
+		}
+		sbs.writeBlocks(30, 20, run, 0);
+		byte[] back = new byte[run.length];
+		sbs.readBlocks(30, 20, back, 0);
+		for(int i=0; i<run.length; ++i){
+			if(back[i] != run[i])    passed = false;
+		}
+
+		// block 30 is the start of stripe unit 15, which is in row 5 of
+		// member 0, so it is that member's block 10
+		byte[] direct = new byte[bs];
+		devs[0].readBlock(10, direct, 0, 0, bs);
+		for(int i=0; i<bs; ++i){
+			if(direct[i] != run[i])    passed = false;
+		}
+
+		// the superblock must be on every member, and the geometry checked
+		byte[] sb = TestBlockStore.makeBlock(sbs, 7);
+		sbs.writeSuperBlock(sb, 0, 0, sbs.superBlockSize());
+		BlockDevice[] reordered = { devs[1], devs[0], devs[2] };
+		try {
+			new StripedBlockStore(reordered, 2);
+			passed = false;
+		}catch(DataIntegrityException x){
+			// expected
+		}
+		StripedBlockStore reopened = new StripedBlockStore(devs, 2);
+		byte[] sbBack = new byte[sbs.superBlockSize()];
+		reopened.readSuperBlock(sbBack, 0, 0, sbBack.length);
+		devs[2].readSuperBlock(direct, 0, 0, sbBack.length);
+		for(int i=0; i<sbBack.length; ++i){
+			if(sbBack[i] != sb[i] || direct[i] != sb[i])    passed = false;
+		}
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED TestStripedBlockStore");
+		}
+	}
+}
@@ -0,0 +1,53 @@
+import java.util.Arrays;
+
+
+public class TestStripedPRGen {
+	public static void main(String[] args) throws InterruptedException {
+		byte[] seed = new byte[PRGen.KeySizeBytes];
+		seed[0] = 7;
+		StripedPRGen prg = new StripedPRGen(seed);
+
+		// each thread takes more than one chunk, so refills are covered too
+		int numThreads = 8;
+		byte[][] outputs = new byte[numThreads][3*StripedPRGen.ChunkBytes+5];
+		Thread[] threads = new Thread[numThreads];
+		for(int i=0; i<numThreads; ++i){
+			byte[] out = outputs[i];
+			threads[i] = new Thread(() -> prg.nextBytes(out));
+			threads[i].start();
+		}
+		for(Thread t : threads){
+			t.join();
+		}
+
+		boolean passed = true;
+		for(int i=0; i<numThreads; ++i){
+			for(int j=0; j<i; ++j){
+				if(Arrays.equals(outputs[i], outputs[j]))    passed = false;
+			}
+		}
+
+		// within a thread, output must not repeat across a refill, and the
+		// bits should come out about half ones
+		byte[] first = new byte[StripedPRGen.ChunkBytes];
+		byte[] second = new byte[StripedPRGen.ChunkBytes];
+		prg.nextBytes(first);
+		prg.nextBytes(second);
+		if(Arrays.equals(first, second))    passed = false;
+		int ones = 0;
+		for(byte b : second){
+			ones += Integer.bitCount(b & 0xff);
+		}
+		int bits = 8*second.length;
+		if(Math.abs(ones - bits/2) > bits/20)    passed = false;
+
+		int n = prg.nextInt(10);
+		if(n < 0 || n >= 10)    passed = false;
+
+		if(passed){
+			System.out.println("OK");
+		}else{
+			System.out.println("FAILED");
+		}
+	}
+}